@@ -0,0 +1,28 @@
+/*
+ * Congestion controller of a GUDP endpoint: decides how many packets the
+ * sender may have in flight. The endpoint reports ACKs and losses, and the
+ * sender uses min(getWindow(), GUDPEndPoint window size) as its window.
+ */
+interface GUDPCongestionControl {
+
+    /*
+     * Current congestion window, in packets
+     */
+    int getWindow();
+
+    /*
+     * ackedPackets newly acknowledged; srtt is the smoothed RTT in
+     * milliseconds, or negative when there is no RTT sample yet
+     */
+    void onAck(int ackedPackets, double srtt);
+
+    /*
+     * Loss detected without a timeout (fast retransmit)
+     */
+    void onLoss();
+
+    /*
+     * Retransmission timeout
+     */
+    void onTimeout();
+}
@@ -0,0 +1,63 @@
+/*
+ * CUBIC congestion control (RFC 8312): after a loss the window follows
+ * W(t) = C * (t - K)^3 + Wmax, so it grows back fast to the window where
+ * the loss happened, probes slowly around it, and then accelerates. The
+ * window never grows slower than Reno would (TCP-friendly region).
+ */
+class GUDPCubicControl extends GUDPRenoControl {
+    public static final double C = 0.4;
+    public static final double BETA = 0.7;
+
+    private double wMax = 0;
+    private double k = 0;
+    private long epochStart = 0; // System.nanoTime() of the start of the current epoch, 0 if none
+
+    public synchronized void onAck(int ackedPackets, double srtt) {
+        if (cwnd < ssthresh) {
+            super.onAck(ackedPackets, srtt);
+            return;
+        }
+        long now = System.nanoTime();
+        if (epochStart == 0) {
+            epochStart = now;
+            if (cwnd < wMax) {
+                k = Math.cbrt((wMax - cwnd) / C);
+            } else {
+                k = 0;
+                wMax = cwnd;
+            }
+        }
+        double rtt = srtt > 0 ? srtt / 1000 : 0.1;
+        double t = (now - epochStart) / 1e9 + rtt;
+        double target = C * Math.pow(t - k, 3) + wMax;
+        double friendly = wMax * BETA + 3 * (1 - BETA) / (1 + BETA) * (t / rtt);
+        target = Math.max(target, friendly);
+
+        for (int i = 0; i < ackedPackets; i++) {
+            if (target > cwnd)
+                cwnd += (target - cwnd) / cwnd;
+            else
+                cwnd += 0.01 / cwnd;
+        }
+    }
+
+    public synchronized void onLoss() {
+        reduce();
+        cwnd = ssthresh;
+    }
+
+    public synchronized void onTimeout() {
+        reduce();
+        cwnd = 1;
+    }
+
+    private void reduce() {
+        epochStart = 0;
+        // fast convergence: give up bandwidth to newer flows
+        if (cwnd < wMax)
+            wMax = cwnd * (1 + BETA) / 2;
+        else
+            wMax = cwnd;
+        ssthresh = Math.max(cwnd * BETA, MIN_WINDOW);
+    }
+}
@@ -1,30 +1,72 @@
 import java.io.IOException;
-import java.util.LinkedList;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.TimerTask;
-import java.util.Timer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 class GUDPEndPoint {
     /* Pre-defined constant values for key variables */
-    public static final int MAX_WINDOW_SIZE = 3;
+    public static final int MAX_WINDOW_SIZE = 4096; // upper bound, the congestion window decides below it
     public static final int MAX_RETRY = 7;
-    public static final long TIMEOUT_DURATION = 3000L; // (3 seconds)
+    public static final long TIMEOUT_DURATION = 3000L; // (3 seconds) until the first RTT sample
+    public static final long MIN_TIMEOUT_DURATION = 100L;
+    public static final long MAX_TIMEOUT_DURATION = 60000L;
+    public static final long CLOCK_GRANULARITY = GUDPTimerWheel.DEFAULT_TICK_DURATION;
+    public static final int DEFAULT_RECEIVE_BUFFER = 1024; // packets held for the application, per endpoint
+    public static final int DEFAULT_SEND_BUFFER = 1024; // packets sent or queued but not ACKed, per endpoint
+    public static final int ACK_FREQUENCY = 2; // ACK every second in-order packet
+    public static final long ACK_DELAY = CLOCK_GRANULARITY; // at the latest one tick after a packet
+    public static final int DUP_ACK_THRESHOLD = 3; // duplicate ACKs before a fast retransmit
 
     /* Variables for the control block */
     // private DatagramSocket datagramSocket;
     private InetSocketAddress remoteEndPoint;
-    private LinkedList<GUDPPacket> bufferList = new LinkedList<>();
+    private GUDPRingBuffer bufferList = new GUDPRingBuffer();
 
     private int windowSize;
     private int maxRetry;
     private long timeoutDuration;
     private int retry = 0;
 
+    private GUDPCongestionControl congestionControl = new GUDPRenoControl();
+
+    /* Flow control: window advertised by the peer (send side), and buffer limit (receive side) */
+    private int receiveWindow = MAX_WINDOW_SIZE;
+    private int receiveBufferSize = DEFAULT_RECEIVE_BUFFER;
+    private int advertisedWindow = DEFAULT_RECEIVE_BUFFER; // last window sent in an ACK
+    private int sendBufferSize = DEFAULT_SEND_BUFFER;
+
+    /* RTT estimation (RFC 6298), in milliseconds; srtt < 0 until the first sample */
+    private double srtt = -1;
+    private double rttvar = 0;
+    private long rto = TIMEOUT_DURATION;
+
     private int base; // seq of sent packet not yet acked (i.e., base)
     private int nextseqnum; // seq of next packet to send (i.e., nextseqnum)
     private int last; // seq of last packet in bufferList
-    private int expectedseqnum; // seq of next packet to receive
+    private volatile int expectedseqnum; // seq of next packet to receive; read by window updates from receive()
+    private int sessionBsn; // receive side: BSN of the current session, once out of INIT
+
+    /*
+     * Guards the send side (sequence numbers, window, event) between send(),
+     * the sender and the ACK handling. One lock per endpoint: peers never
+     * wait for each other. A ReentrantLock rather than a monitor, as a
+     * virtual thread blocked on a monitor holds on to its carrier thread.
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Condition sendRoom = sendLock.newCondition(); // signalled when pending is drained
+    private final AtomicBoolean scheduled = new AtomicBoolean(false); // on the sender ready queue
+    private GUDPMpscQueue pending; // from send(), not numbered yet; send endpoints only
+    private boolean piggybackBsn = false; // the first packet from send() carries the BSN
+
+    /* Receive side delivery, guarded by the socket's receive lock */
+    private boolean readable = false; // on the socket's queue of readable endpoints
+    private Condition receiveCondition; // signalled when a packet is delivered
+
+    private int dupAcks = 0; // duplicate ACKs of base in a row
+    private boolean inRecovery = false; // fast retransmit done, until recoveryPoint is ACKed
+    private int recoveryPoint; // nextseqnum when the loss was detected
 
     private boolean dropSend = false; // for drop send packet
     private boolean dropReceive = false; // for drop receive packet
@@ -51,9 +93,10 @@ class GUDPEndPoint {
         SEND,
         TIMEOUT,
         RECEIVE,
+        RETRANSMIT,
     }
 
-    private readyEvent event = readyEvent.INIT;
+    private volatile readyEvent event = readyEvent.INIT; // set by the receiver and timer, handled by the sender
 
     public GUDPEndPoint(InetAddress addr, int port) {
         setRemoteEndPoint(addr, port);
@@ -62,6 +105,80 @@ class GUDPEndPoint {
         this.timeoutDuration = TIMEOUT_DURATION;
     }
 
+    public ReentrantLock getSendLock() {
+        return this.sendLock;
+    }
+
+    public Condition getSendRoom() {
+        return this.sendRoom;
+    }
+
+    /*
+     * Returns true if the endpoint was not on the sender ready queue yet
+     */
+    public boolean markScheduled() {
+        return this.scheduled.compareAndSet(false, true);
+    }
+
+    public void clearScheduled() {
+        this.scheduled.set(false);
+    }
+
+    /*
+     * Create the queue of packets from send(), on send endpoints only, before
+     * the endpoint is published: receive endpoints never queue anything
+     */
+    public void createPending(int capacity) {
+        this.pending = new GUDPMpscQueue(capacity);
+    }
+
+    /*
+     * Queue a packet from send() or finish(), from any thread. Returns false
+     * if the queue is full.
+     */
+    public boolean offerPending(GUDPPacket packet) {
+        return this.pending.offer(packet);
+    }
+
+    /*
+     * Queue up to count packets from packets[offset] at once, from any
+     * thread. Returns the number of packets queued.
+     */
+    public int offerPending(GUDPPacket[] packets, int offset, int count) {
+        return this.pending.offer(packets, offset, count);
+    }
+
+    /*
+     * Next queued packet, only from the sender with the send lock held
+     */
+    public GUDPPacket pollPending() {
+        return this.pending == null ? null : this.pending.poll();
+    }
+
+    public boolean isPiggybackBsn() {
+        return this.piggybackBsn;
+    }
+
+    public void setPiggybackBsn(boolean value) {
+        this.piggybackBsn = value;
+    }
+
+    public boolean isReadable() {
+        return this.readable;
+    }
+
+    public void setReadable(boolean value) {
+        this.readable = value;
+    }
+
+    public Condition getReceiveCondition() {
+        return this.receiveCondition;
+    }
+
+    public void setReceiveCondition(Condition condition) {
+        this.receiveCondition = condition;
+    }
+
     public InetSocketAddress getRemoteEndPoint() {
         return this.remoteEndPoint;
     }
@@ -70,8 +187,77 @@ class GUDPEndPoint {
         this.remoteEndPoint = new InetSocketAddress(addr, port);
     }
 
+    /*
+     * Effective send window: the smaller of the congestion window and the
+     * window advertised by the receiver, capped by windowSize. Never below
+     * one packet, so a zero window is probed with the packet at base.
+     */
     public int getWindowSize() {
-        return this.windowSize;
+        int window = Math.min(this.congestionControl.getWindow(), this.receiveWindow);
+        return Math.max(1, Math.min(this.windowSize, window));
+    }
+
+    public int getReceiveWindow() {
+        return this.receiveWindow;
+    }
+
+    public void setReceiveWindow(int window) {
+        this.receiveWindow = window;
+    }
+
+    public int getReceiveBufferSize() {
+        return this.receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int size) {
+        this.receiveBufferSize = size;
+        this.advertisedWindow = size;
+    }
+
+    public int getSendBufferSize() {
+        return this.sendBufferSize;
+    }
+
+    public void setSendBufferSize(int size) {
+        this.sendBufferSize = size;
+    }
+
+    /*
+     * Send side: the send buffer holds every packet from base to last, sent
+     * or not. It may hold sendBufferSize packets, or twice the window if that
+     * is more, so that a zero window or a lost path stops send() instead of
+     * growing the heap.
+     */
+    public boolean isSendBufferFull() {
+        synchronized (bufferList) {
+            return bufferList.size() >= Math.max(this.sendBufferSize, 2 * getWindowSize());
+        }
+    }
+
+    public int getAdvertisedWindow() {
+        return this.advertisedWindow;
+    }
+
+    public void setAdvertisedWindow(int window) {
+        this.advertisedWindow = window;
+    }
+
+    /*
+     * Receive side: room left for in-order packets not yet read by the
+     * application, counted from expectedseqnum
+     */
+    public int getFreeWindow() {
+        synchronized (bufferList) {
+            return Math.max(0, this.receiveBufferSize - bufferList.size());
+        }
+    }
+
+    public GUDPCongestionControl getCongestionControl() {
+        return this.congestionControl;
+    }
+
+    public void setCongestionControl(GUDPCongestionControl control) {
+        this.congestionControl = control;
     }
 
     public void setWindowSize(int size) {
@@ -94,6 +280,73 @@ class GUDPEndPoint {
         this.timeoutDuration = duration;
     }
 
+    public double getSrtt() {
+        return this.srtt;
+    }
+
+    /*
+     * New RTT sample, from a packet sent once and its ACK (Karn's rule: the
+     * caller never samples retransmitted packets). Recomputes the timeout and
+     * discards any backoff.
+     */
+    public synchronized void updateRtt(long sampleNanos) {
+        double sample = sampleNanos / 1e6;
+        if (srtt < 0) {
+            srtt = sample;
+            rttvar = sample / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - sample);
+            srtt = 0.875 * srtt + 0.125 * sample;
+        }
+        long value = (long) Math.ceil(srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar));
+        rto = Math.min(Math.max(value, MIN_TIMEOUT_DURATION), MAX_TIMEOUT_DURATION);
+        timeoutDuration = rto;
+    }
+
+    /*
+     * Exponential backoff on retransmission timeout
+     */
+    public synchronized void backoffTimeout() {
+        timeoutDuration = Math.min(timeoutDuration * 2, MAX_TIMEOUT_DURATION);
+    }
+
+    /*
+     * An ACK for new data ends the backoff, even without an RTT sample (as
+     * QUIC does), so a few unlucky timeouts do not stall the endpoint
+     */
+    public synchronized void resetBackoff() {
+        timeoutDuration = rto;
+    }
+
+    /*
+     * Count a duplicate ACK, returns the number received in a row
+     */
+    public int duplicateAck() {
+        return ++this.dupAcks;
+    }
+
+    public void resetDuplicateAcks() {
+        this.dupAcks = 0;
+    }
+
+    public boolean isInRecovery() {
+        return this.inRecovery;
+    }
+
+    public int getRecoveryPoint() {
+        return this.recoveryPoint;
+    }
+
+    public void enterRecovery(int point) {
+        this.inRecovery = true;
+        this.recoveryPoint = point;
+    }
+
+    public void exitRecovery() {
+        this.inRecovery = false;
+        this.dupAcks = 0;
+    }
+
     public int getRetry() {
         return this.retry;
     }
@@ -134,6 +387,14 @@ class GUDPEndPoint {
         this.expectedseqnum = seq;
     }
 
+    public int getSessionBsn() {
+        return this.sessionBsn;
+    }
+
+    public void setSessionBsn(int bsn) {
+        this.sessionBsn = bsn;
+    }
+
     public boolean getDropSend() {
         return this.dropSend;
     }
@@ -195,36 +456,41 @@ class GUDPEndPoint {
         }
     }
 
+    /*
+     * First packet of the bufferList, left in it; null if there is none
+     */
+    public GUDPPacket peek() {
+        synchronized (bufferList) {
+            return bufferList.peek();
+        }
+    }
+
     /*
      * Get the packet with the given sequence number from bufferList
      * IMPORTANT: the packet is still in the bufferList!
      */
     public GUDPPacket getPacket(int seq) {
         synchronized (bufferList) {
-            for (int i = 0; i < bufferList.size(); i++) {
-                if (bufferList.get(i).getSeqno() == seq) {
-                    return bufferList.get(i);
-                }
-            }
-            return null;
+            return bufferList.get(seq);
         }
     }
 
     /*
      * Remove all packets with sequence number below ACK from bufferList
      * Assuming those packets were successfully received
+     * Returns true if one of them was retransmitted
      */
-    public void removeAllACK(int ack) {
+    public boolean removeAllACK(int ack) {
+        boolean retransmitted = false;
         synchronized (bufferList) {
-            while (bufferList.size() > 0) {
-                if (bufferList.getFirst().getSeqno() <= ack) {
-                    bufferList.removeFirst();
-                } else {
-                    break;
-                }
+            GUDPPacket packet;
+            while ((packet = bufferList.peek()) != null && packet.getSeqno() - ack <= 0) {
+                bufferList.remove();
+                retransmitted |= packet.isRetransmitted();
+                packet.release();
             }
-            // notify();
         }
+        return retransmitted;
     }
 
     /*
@@ -232,38 +498,178 @@ class GUDPEndPoint {
      */
     public void removeAll() {
         synchronized (bufferList) {
-            while (bufferList.size() > 0) {
-                bufferList.removeFirst();
-            }
+            while (!bufferList.isEmpty())
+                bufferList.remove().release();
         }
     }
 
     public boolean isEmptyBuffer() {
-        if (bufferList.size() == 0)
-            return true;
-        else
+        return bufferList.isEmpty();
+    }
+
+    /*
+     * Selective Repeat receive side: packets received after a gap, kept until
+     * the gap is filled. Slot seq & mask holds packet seq, for the
+     * sequence numbers that follow expectedseqnum within the free window.
+     * Only the first SACK_RANGE of them are reported in ACKs. Allocated with
+     * the first packet kept, so Go-Back-N receivers and send endpoints never
+     * have one; its length is the receive buffer size rounded up to a power
+     * of two, as the free window bounds the offsets kept.
+     */
+    private GUDPPacket[] outOfOrder;
+
+    /*
+     * Keep a packet received out of order. Returns false if it is outside the
+     * window or already held; the caller keeps ownership of the packet then.
+     */
+    public synchronized boolean bufferOutOfOrder(GUDPPacket packet) {
+        int offset = packet.getSeqno() - expectedseqnum;
+        if (offset <= 0 || offset >= getFreeWindow())
+            return false;
+        if (outOfOrder == null)
+            outOfOrder = new GUDPPacket[Integer.highestOneBit(Math.max(receiveBufferSize, 2) - 1) << 1];
+        if (offset >= outOfOrder.length)
             return false;
+        int slot = packet.getSeqno() & (outOfOrder.length - 1);
+        if (outOfOrder[slot] != null)
+            return false;
+        outOfOrder[slot] = packet;
+        return true;
     }
 
     /*
-     * Timer uses for sending timeout
+     * Retrieve and remove the buffered packet with the given sequence number
      */
-    Timer timer;
-
-    public void startTimer() {
-        timer = new Timer("Timer");
-        TimerTask task = new TimerTask() {
-            public void run() {
-                System.out.println("TIMEOUT: " + remoteEndPoint.getAddress() + ":" + remoteEndPoint.getPort());
-                setEvent(readyEvent.TIMEOUT);
-                timer.cancel();
+    public synchronized GUDPPacket takeOutOfOrder(int seq) {
+        if (outOfOrder == null)
+            return null;
+        int slot = seq & (outOfOrder.length - 1);
+        GUDPPacket packet = outOfOrder[slot];
+        if (packet == null || packet.getSeqno() != seq)
+            return null;
+        outOfOrder[slot] = null;
+        return packet;
+    }
+
+    public synchronized void clearOutOfOrder() {
+        if (outOfOrder == null)
+            return;
+        for (int i = 0; i < outOfOrder.length; i++) {
+            if (outOfOrder[i] != null) {
+                outOfOrder[i].release();
+                outOfOrder[i] = null;
             }
-        };
-        timer.schedule(task, timeoutDuration);
+        }
+    }
+
+    /*
+     * SACK bitmap of the out-of-order packets: bit i for expectedseqnum + 1 + i
+     */
+    public synchronized long getSackBitmap() {
+        long bitmap = 0L;
+        if (outOfOrder == null)
+            return bitmap;
+        for (int i = 0; i < GUDPPacket.SACK_RANGE; i++) {
+            int seq = expectedseqnum + 1 + i;
+            GUDPPacket packet = outOfOrder[seq & (outOfOrder.length - 1)];
+            if (packet != null && packet.getSeqno() == seq)
+                bitmap |= 1L << i;
+        }
+        return bitmap;
+    }
+
+    /*
+     * Timer uses for sending timeout: an entry on the shared timer wheel that
+     * sets the TIMEOUT event and wakes up the sender through timeoutListener
+     */
+    private GUDPTimerWheel timerWheel = GUDPTimerWheel.getDefault();
+    private GUDPTimerWheel.Timeout timeout;
+    private Runnable timeoutListener;
+
+    public void setTimerWheel(GUDPTimerWheel wheel) {
+        this.timerWheel = wheel;
+    }
+
+    public void setTimeoutListener(Runnable listener) {
+        this.timeoutListener = listener;
+    }
+
+    public synchronized void startTimer() {
+        if (timeout != null)
+            timeout.cancel();
+        timeout = timerWheel.schedule(() -> {
+            System.out.println("TIMEOUT: " + remoteEndPoint.getAddress() + ":" + remoteEndPoint.getPort());
+            setEvent(readyEvent.TIMEOUT);
+            if (timeoutListener != null)
+                timeoutListener.run();
+        }, timeoutDuration);
+    }
+
+    public synchronized boolean isTimerPending() {
+        return timeout != null && timeout.isPending();
+    }
+
+    public synchronized void stopTimer() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+
+    /*
+     * Delayed ACKs on the receive side: in-order packets not ACKed yet, and
+     * the timer that flushes them (event loop mode), or the deadline the
+     * receiver thread flushes them by (thread mode, receiver thread only)
+     */
+    private int unackedPackets = 0;
+    private GUDPTimerWheel.Timeout ackTimeout;
+    private long ackDeadline; // System.nanoTime()
+    private boolean ackQueued = false; // on the receiver thread's list of delayed ACKs
+
+    /*
+     * Count a packet to ACK, returns the number waiting for an ACK
+     */
+    public synchronized int packetToAck() {
+        return ++unackedPackets;
+    }
+
+    public synchronized boolean hasPacketsToAck() {
+        return unackedPackets > 0;
+    }
+
+    /*
+     * Run task after delay, unless an ACK timer is already pending
+     */
+    public synchronized void startAckTimer(Runnable task, long delay) {
+        if (ackTimeout == null || !ackTimeout.isPending())
+            ackTimeout = timerWheel.schedule(task, delay);
     }
 
-    public void stopTimer() {
-        timer.cancel();
+    public long getAckDeadline() {
+        return this.ackDeadline;
+    }
+
+    public boolean isAckQueued() {
+        return this.ackQueued;
+    }
+
+    /*
+     * Put on or take off the receiver thread's list of delayed ACKs
+     */
+    public void setAckQueued(boolean queued, long deadline) {
+        this.ackQueued = queued;
+        this.ackDeadline = deadline;
+    }
+
+    /*
+     * An ACK covering everything received so far has been sent
+     */
+    public synchronized void ackSent() {
+        unackedPackets = 0;
+        if (ackTimeout != null) {
+            ackTimeout.cancel();
+            ackTimeout = null;
+        }
     }
 
 }
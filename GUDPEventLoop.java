@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Non-blocking GUDP engine: one thread multiplexes reads, writes and timer
+ * expiry for any number of GUDPSockets built on a DatagramChannel.
+ *
+ * The loop owns a timer wheel that it advances itself, so retransmission
+ * timeouts fire on the loop thread and no locks are shared with other
+ * sender or receiver threads. Application threads only enqueue work and
+ * wake up the selector.
+ */
+class GUDPEventLoop implements Runnable {
+    private static GUDPEventLoop defaultLoop;
+
+    private final Selector selector;
+    private final GUDPTimerWheel timerWheel = new GUDPTimerWheel();
+    private final ConcurrentLinkedQueue<GUDPSocket> registrations = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<GUDPSocket> cancellations = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<GUDPSocket> readySockets = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Thread loopThread;
+    private volatile boolean running = false;
+
+    public GUDPEventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    /*
+     * Event loop shared by all non-blocking sockets, started on first use
+     */
+    public static synchronized GUDPEventLoop getDefault() throws IOException {
+        if (defaultLoop == null) {
+            defaultLoop = new GUDPEventLoop();
+            defaultLoop.start();
+        }
+        return defaultLoop;
+    }
+
+    public GUDPTimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        loopThread = new Thread(this, "GUDP Event Loop");
+        loopThread.setDaemon(true);
+        loopThread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void register(GUDPSocket socket) {
+        registrations.add(socket);
+        selector.wakeup();
+    }
+
+    public void unregister(GUDPSocket socket) {
+        cancellations.add(socket);
+        selector.wakeup();
+    }
+
+    /*
+     * Schedule a sender pass over the socket's endpoints
+     */
+    public void wakeup(GUDPSocket socket) {
+        readySockets.add(socket);
+        if (Thread.currentThread() != loopThread)
+            selector.wakeup();
+    }
+
+    /*
+     * Run task on the loop thread, for work that touches a channel
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != loopThread)
+            selector.wakeup();
+    }
+
+    /*
+     * Only called from the loop thread
+     */
+    void setWriteInterest(GUDPSocket socket, boolean enable) {
+        SelectionKey key = socket.getSelectionKey();
+        if (key == null || !key.isValid())
+            return;
+        if (enable)
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        else
+            key.interestOps(SelectionKey.OP_READ);
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                if (timerWheel.hasPending()) {
+                    long wait = timerWheel.timeToNextTick(GUDPTimerWheel.now());
+                    if (wait > 0)
+                        selector.select(wait);
+                    else
+                        selector.selectNow();
+                } else {
+                    selector.select();
+                }
+
+                handleRegistrations();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    GUDPSocket socket = (GUDPSocket) key.attachment();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isReadable())
+                        socket.handleReadable();
+                    if (key.isValid() && key.isWritable())
+                        socket.handleWritable();
+                }
+
+                timerWheel.advance(GUDPTimerWheel.now());
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        System.err.println(">>Event loop: error in task " + e);
+                    }
+                }
+
+                GUDPSocket socket;
+                while ((socket = readySockets.poll()) != null) {
+                    SelectionKey key = socket.getSelectionKey();
+                    if (key == null || key.isValid())
+                        socket.handleSendQueue();
+                }
+            } catch (IOException e) {
+                System.err.println(">>Event loop: error " + e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println(">>Event loop: error closing selector " + e);
+        }
+    }
+
+    private void handleRegistrations() {
+        GUDPSocket socket;
+        while ((socket = registrations.poll()) != null) {
+            try {
+                SelectionKey key = socket.getChannel().register(selector, SelectionKey.OP_READ, socket);
+                socket.setSelectionKey(key);
+            } catch (ClosedChannelException e) {
+                System.err.println(">>Event loop: cannot register closed socket " + socket);
+            }
+        }
+        while ((socket = cancellations.poll()) != null) {
+            SelectionKey key = socket.getSelectionKey();
+            if (key != null)
+                key.cancel();
+        }
+    }
+}
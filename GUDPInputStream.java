@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Byte stream of the data received on a GUDPSocket, from one peer or from
+ * any peer. Packets are taken from the socket several at a time (batch
+ * receive) and read() copies from as many of them as fit in the caller's
+ * buffer. read() only waits when nothing is buffered.
+ *
+ * GUDP does not tell the application where a transfer ends: the stream ends
+ * (read() returns -1) when the socket is closed.
+ *
+ * read() waits for data holding the stream's lock: a ReentrantLock, as a
+ * virtual thread waiting on a monitor would hold on to its carrier thread.
+ */
+public class GUDPInputStream extends InputStream {
+    public static final int DEFAULT_BATCH = 16;
+
+    private final GUDPSocket socket;
+    private final InetSocketAddress peer; // null: data from any peer
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private DatagramPacket[] packets;
+    private int packetCount = 0; // packets filled in by the last receive
+    private int packetIndex = 0; // packet being read
+    private int position = 0; // in the packet being read
+    private boolean eof = false;
+
+    public GUDPInputStream(GUDPSocket socket) {
+        this(socket, null);
+    }
+
+    /*
+     * Only data from peer. Packets from a given peer are received one at a
+     * time, as receive(DatagramPacket) filters by peer and the batch receive
+     * does not.
+     */
+    public GUDPInputStream(GUDPSocket socket, InetSocketAddress peer) {
+        this.socket = socket;
+        this.peer = peer;
+        this.packets = new DatagramPacket[peer == null ? DEFAULT_BATCH : 1];
+        for (int i = 0; i < this.packets.length; i++)
+            this.packets[i] = new DatagramPacket(new byte[GUDPPacket.MAX_DATA_LEN], GUDPPacket.MAX_DATA_LEN);
+    }
+
+    public int read() throws IOException {
+        this.lock.lock();
+        try {
+            if (!fill())
+                return -1;
+            DatagramPacket packet = this.packets[this.packetIndex];
+            int b = packet.getData()[this.position++] & 0xff;
+            advance();
+            return b;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        this.lock.lock();
+        try {
+            if (!fill())
+                return -1;
+            int total = 0;
+            while (total < len && this.packetIndex < this.packetCount) {
+                DatagramPacket packet = this.packets[this.packetIndex];
+                int n = Math.min(len - total, packet.getLength() - this.position);
+                System.arraycopy(packet.getData(), this.position, b, off + total, n);
+                this.position += n;
+                total += n;
+                advance();
+            }
+            return total;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Bytes that can be read without waiting
+     */
+    public int available() {
+        this.lock.lock();
+        try {
+            int total = 0;
+            for (int i = this.packetIndex; i < this.packetCount; i++)
+                total += this.packets[i].getLength();
+            return total - this.position;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Close the stream only. The socket stays open.
+     */
+    public void close() {
+        this.lock.lock();
+        try {
+            this.eof = true;
+            this.packetCount = 0;
+            this.packetIndex = 0;
+            this.position = 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Make sure some data is buffered, waiting for it if needed. Returns false
+     * at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        while (this.packetIndex >= this.packetCount) {
+            if (this.eof)
+                return false;
+            this.packetIndex = 0;
+            this.position = 0;
+            this.packetCount = 0;
+            try {
+                if (this.peer == null) {
+                    this.packetCount = this.socket.receive(this.packets);
+                } else {
+                    DatagramPacket packet = this.packets[0];
+                    packet.setSocketAddress(this.peer);
+                    packet.setLength(packet.getData().length);
+                    this.socket.receive(packet);
+                    this.packetCount = 1;
+                }
+            } catch (SocketException e) {
+                this.eof = true; // socket closed
+                return false;
+            }
+            skipEmpty();
+        }
+        return true;
+    }
+
+    /*
+     * Move on to the next packet when the current one has been read
+     */
+    private void advance() {
+        if (this.position >= this.packets[this.packetIndex].getLength()) {
+            this.packetIndex++;
+            this.position = 0;
+            skipEmpty();
+        }
+    }
+
+    private void skipEmpty() {
+        while (this.packetIndex < this.packetCount && this.packets[this.packetIndex].getLength() == 0)
+            this.packetIndex++;
+    }
+}
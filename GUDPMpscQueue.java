@@ -0,0 +1,95 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded lock-free queue of GUDP packets with many producers and a single
+ * consumer, used to hand packets from send() to the sender without taking
+ * a lock. Each slot has a sequence number telling whether it is free for
+ * the producer at a given position, or published for the consumer
+ * (Vyukov's bounded queue).
+ */
+class GUDPMpscQueue {
+    public static final int DEFAULT_CAPACITY = 128; // a handoff to the sender, not a send buffer
+
+    private final GUDPPacket[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0); // next position for producers
+    private volatile long head = 0; // next position for the consumer
+
+    public GUDPMpscQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public GUDPMpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new GUDPPacket[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    /*
+     * Add a packet, from any thread. Returns false if the queue is full.
+     */
+    public boolean offer(GUDPPacket packet) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (diff < 0) {
+                return false; // the consumer has not freed this slot yet
+            } else {
+                position = tail.get(); // another producer took the slot
+            }
+        }
+        slots[index] = packet;
+        sequences.set(index, position + 1); // publish
+        return true;
+    }
+
+    /*
+     * Add up to count packets from packets[offset], from any thread, claiming
+     * all their slots with one update of tail. Returns the number of packets
+     * added, 0 if the queue is full. The slots are free up to head, as the
+     * consumer frees them in order.
+     */
+    public int offer(GUDPPacket[] packets, int offset, int count) {
+        long position;
+        int n;
+        do {
+            position = tail.get();
+            n = (int) Math.min(count, slots.length - (position - head));
+            if (n <= 0)
+                return 0;
+        } while (!tail.compareAndSet(position, position + n));
+        for (int i = 0; i < n; i++) {
+            int index = (int) ((position + i) & mask);
+            slots[index] = packets[offset + i];
+            sequences.set(index, position + i + 1); // publish
+        }
+        return n;
+    }
+
+    /*
+     * Retrieve and remove the oldest packet, only from the consumer thread.
+     * Returns null if the queue is empty.
+     */
+    public GUDPPacket poll() {
+        long position = head;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1)
+            return null; // empty, or the producer has not published yet
+        GUDPPacket packet = slots[index];
+        slots[index] = null;
+        sequences.set(index, position + slots.length); // free for the next round
+        head = position + 1;
+        return packet;
+    }
+}
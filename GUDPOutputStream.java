@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Byte stream to one destination over a GUDPSocket. Writes are coalesced
+ * into packets of GUDPPacket.MAX_DATA_LEN bytes, and large writes are cut
+ * into as many packets as needed.
+ *
+ * A packet that is not full is sent by flush(), or at the latest flushDelay
+ * milliseconds after its first byte was written (as with Nagle's algorithm,
+ * small writes close together share a packet).
+ */
+public class GUDPOutputStream extends OutputStream {
+    public static final long DEFAULT_FLUSH_DELAY = 2 * GUDPEndPoint.CLOCK_GRANULARITY;
+
+    private final GUDPSocket socket;
+    private final InetSocketAddress destination;
+    private final long flushDelay;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private byte[] buffer = new byte[GUDPPacket.MAX_DATA_LEN];
+    private int count = 0; // bytes in buffer
+    private long generation = 0; // number of packets sent, to tell buffers apart
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+
+    public GUDPOutputStream(GUDPSocket socket, InetSocketAddress destination) {
+        this(socket, destination, DEFAULT_FLUSH_DELAY);
+    }
+
+    /*
+     * flushDelay 0: every write() is sent right away, without coalescing
+     */
+    public GUDPOutputStream(GUDPSocket socket, InetSocketAddress destination, long flushDelay) {
+        this.socket = socket;
+        this.destination = destination;
+        this.flushDelay = flushDelay;
+    }
+
+    public void write(int b) throws IOException {
+        this.lock.lock();
+        try {
+            ensureOpen();
+            this.buffer[this.count++] = (byte) b;
+            bufferWritten();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        this.lock.lock();
+        try {
+            ensureOpen();
+            writeBuffer(b, off, len);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void writeBuffer(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (this.count == 0 && len >= this.buffer.length) {
+                // full packets straight from the caller's array (send() copies the payload)
+                this.socket.send(new DatagramPacket(b, off, this.buffer.length, this.destination));
+                this.generation++;
+                off += this.buffer.length;
+                len -= this.buffer.length;
+                continue;
+            }
+            int n = Math.min(len, this.buffer.length - this.count);
+            System.arraycopy(b, off, this.buffer, this.count, n);
+            this.count += n;
+            off += n;
+            len -= n;
+            bufferWritten();
+        }
+    }
+
+    /*
+     * Send the packet being filled, even if it is not full
+     */
+    public void flush() throws IOException {
+        this.lock.lock();
+        try {
+            ensureOpen();
+            if (this.count > 0)
+                sendBuffer();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Flush the stream. The socket stays open: finish() and close() it to end
+     * the transfer.
+     */
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            if (this.closed)
+                return;
+            flush();
+            this.closed = true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed)
+            throw new IOException("Stream closed");
+    }
+
+    private void bufferWritten() throws IOException {
+        if (this.count == this.buffer.length || this.flushDelay <= 0) {
+            sendBuffer();
+        } else if (!this.flushScheduled) {
+            this.flushScheduled = true;
+            long scheduledGeneration = this.generation;
+            this.socket.schedule(() -> flushTimeout(scheduledGeneration), this.flushDelay);
+        }
+    }
+
+    private void sendBuffer() throws IOException {
+        this.socket.send(new DatagramPacket(this.buffer, 0, this.count, this.destination));
+        this.count = 0;
+        this.generation++;
+    }
+
+    /*
+     * Timer task: the delay is over for the packet being filled when the
+     * timer was set. A later packet gets a timer of its own. The timer
+     * thread must not block (in non-blocking mode it is the event loop the
+     * writer may be waiting for), so a busy writer or a full send queue means
+     * trying again later.
+     */
+    private void flushTimeout(long scheduledGeneration) {
+        if (!this.lock.tryLock()) {
+            this.socket.schedule(() -> flushTimeout(scheduledGeneration), this.flushDelay);
+            return;
+        }
+        try {
+            this.flushScheduled = false;
+            if (this.count == 0 || this.closed)
+                return;
+            long nextGeneration = this.generation;
+            if (scheduledGeneration == this.generation
+                    && this.socket.trySend(new DatagramPacket(this.buffer, 0, this.count, this.destination))) {
+                this.count = 0;
+                this.generation++;
+                return;
+            }
+            this.flushScheduled = true;
+            this.socket.schedule(() -> flushTimeout(nextGeneration), this.flushDelay);
+        } catch (IOException e) {
+            System.err.println(">>GUDPOutputStream: error flushing to " + this.destination + " " + e);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -9,16 +9,35 @@ public class GUDPPacket {
     public static final short HEADER_SIZE = 8;
     public static final Integer MAX_DATA_LEN = 1000;
     public static final Integer MAX_DATAGRAM_LEN = MAX_DATA_LEN + HEADER_SIZE;  
-    public static final Integer MAX_WINDOW_SIZE = 3;
+    public static final Integer MAX_WINDOW_SIZE = GUDPEndPoint.MAX_WINDOW_SIZE;
     public static final short TYPE_DATA = 1;
     public static final short TYPE_BSN = 2;
     public static final short TYPE_ACK = 3; 
     public static final short TYPE_FIN = 4; 
 
+    /*
+     * ACK payload (optional):
+     *   - advertised receive window: number of packets, from seqno on, the
+     *     receiver has room for, seqno being the cumulative ACK in the header
+     *   - 64-bit SACK bitmap, bit i set when the receiver holds packet
+     *     seqno + 1 + i (Selective Repeat only)
+     */
+    public static final short ACK_RWND_OFFSET = 0;
+    public static final short ACK_RWND_LEN = 4;
+    public static final short ACK_SACK_OFFSET = 4;
+    public static final short ACK_SACK_LEN = 8;
+    public static final short SACK_RANGE = 64;
+
     private InetSocketAddress sockaddr;
     private ByteBuffer byteBuffer;
     private Integer payloadLength;
 
+    private GUDPPacketPool pool; // pool the packet returns to on release(), if any
+    private boolean released = false;
+    private boolean sacked = false; // send side: selectively ACKed by the receiver
+    private long sentTime; // send side: System.nanoTime() of the first transmission
+    private boolean retransmitted = false; // send side: no RTT sample from this packet
+
     /* 
      * Application send processing: Build a DATA GUDP packet to encaspulate payload
      * from the application. The application payload is in the form of a DatagramPacket,
@@ -37,6 +56,53 @@ public class GUDPPacket {
         return gudppacket;
     }
 
+    /*
+     * Same as encapsulate(packet), with the GUDP packet taken from a pool
+     */
+    public static GUDPPacket encapsulate(DatagramPacket packet, GUDPPacketPool pool) throws IOException {
+        GUDPPacket gudppacket = pool.acquire(packet.getLength());
+        gudppacket.setType(TYPE_DATA);
+        gudppacket.setVersion(GUDP_VERSION);
+        gudppacket.setPayload(packet.getData(), packet.getOffset(), packet.getLength());
+        gudppacket.setSocketAddress((InetSocketAddress) packet.getSocketAddress());
+        return gudppacket;
+    }
+
+    /*
+     * Build a DATA GUDP packet from a pool, with the remaining bytes of each
+     * of parts as payload. The bytes are copied straight into the packet
+     * (from a mapped file for instance), and the positions of parts are not
+     * changed.
+     */
+    public static GUDPPacket encapsulate(InetSocketAddress sockaddr, ByteBuffer[] parts, GUDPPacketPool pool) {
+        int length = 0;
+        for (ByteBuffer part : parts)
+            length += part.remaining();
+        GUDPPacket gudppacket = pool.acquire(length);
+        gudppacket.setType(TYPE_DATA);
+        gudppacket.setVersion(GUDP_VERSION);
+        int offset = HEADER_SIZE;
+        for (ByteBuffer part : parts) {
+            gudppacket.byteBuffer.put(offset, part, part.position(), part.remaining());
+            offset += part.remaining();
+        }
+        gudppacket.setPayloadLength(length);
+        gudppacket.setSocketAddress(sockaddr);
+        return gudppacket;
+    }
+
+    /*
+     * Build a GUDP packet without payload (BSN, ACK, FIN) from a pool
+     */
+    public static GUDPPacket control(GUDPPacketPool pool, short type, int seqno, InetSocketAddress sockaddr) {
+        GUDPPacket gudppacket = pool.acquire();
+        gudppacket.setType(type);
+        gudppacket.setVersion(GUDP_VERSION);
+        gudppacket.setSeqno(seqno);
+        gudppacket.setSocketAddress(sockaddr);
+        return gudppacket;
+    }
+
     /* 
      * Application receive processing: Extract application payload into a DatagramPacket, 
      * with data and socket address.
@@ -65,6 +131,49 @@ public class GUDPPacket {
         return gudppacket;
     }
 
+    /*
+     * Input processing for the non-blocking engine: the datagram has been read
+     * by a DatagramChannel directly into the buffer of this packet, see
+     * receiveBuffer()
+     */
+    public void unpack(int plength, InetSocketAddress from) throws IOException {
+        if (plength < HEADER_SIZE)
+            throw new IOException(String.format("Too short GUDP packet: %d bytes", plength));
+        setPayloadLength(plength - HEADER_SIZE);
+        setSocketAddress(from);
+    }
+
+    /*
+     * Input processing for the blocking engine: reuse udppacket, received into
+     * scratch, to fill in this packet. Heap packets are received in place and
+     * need no copy, see receiveInto().
+     */
+    public void unpack(DatagramPacket udppacket, byte[] scratch) throws IOException {
+        int plength = udppacket.getLength();
+        if (!byteBuffer.hasArray())
+            byteBuffer.put(0, scratch, 0, plength);
+        unpack(plength, (InetSocketAddress) udppacket.getSocketAddress());
+    }
+
+    /*
+     * Prepare udppacket to receive a datagram into this packet: in place for
+     * heap packets, into scratch for direct ones
+     */
+    public void receiveInto(DatagramPacket udppacket, byte[] scratch) {
+        if (byteBuffer.hasArray())
+            udppacket.setData(byteBuffer.array(), 0, byteBuffer.capacity());
+        else
+            udppacket.setData(scratch, 0, Math.min(scratch.length, byteBuffer.capacity()));
+    }
+
+    /*
+     * Buffer for DatagramChannel.receive(), covering the whole packet storage
+     */
+    public ByteBuffer receiveBuffer() {
+        byteBuffer.clear();
+        return byteBuffer;
+    }
+
     /*
      * Output processing: Turn headers and payload into a DatagramPacket, for sending with UDP
      */
@@ -74,7 +183,31 @@ public class GUDPPacket {
         InetSocketAddress socketAddress = getSocketAddress();
         return new DatagramPacket(getBytes(), totlength, sockaddr);
     }
-    
+
+    /*
+     * Same as pack(), reusing udppacket. Direct packets are copied into scratch.
+     */
+    public void pack(DatagramPacket udppacket, byte[] scratch) {
+        int totlength = HEADER_SIZE + getPayloadLength();
+        if (byteBuffer.hasArray()) {
+            udppacket.setData(byteBuffer.array(), 0, totlength);
+        } else {
+            byteBuffer.get(0, scratch, 0, totlength);
+            udppacket.setData(scratch, 0, totlength);
+        }
+        udppacket.setSocketAddress(sockaddr);
+    }
+
+    /*
+     * Output processing for the non-blocking engine: the packet storage,
+     * positioned for DatagramChannel.send()
+     */
+    public ByteBuffer datagramBuffer() {
+        byteBuffer.limit(HEADER_SIZE + getPayloadLength());
+        byteBuffer.position(0);
+        return byteBuffer;
+    }
+
     /*
      * Constructor: create a GUDP packet with a ByteBuffer as back storage
      */
@@ -82,11 +215,39 @@ public class GUDPPacket {
         byteBuffer = buffer;
     }
 
+    GUDPPacket(ByteBuffer buffer, GUDPPacketPool pool) {
+        byteBuffer = buffer;
+        this.pool = pool;
+    }
+
+    /*
+     * Give the packet back to its pool. The packet must not be used afterwards.
+     */
+    public void release() {
+        if (pool == null || released)
+            return;
+        released = true;
+        pool.release(this);
+    }
+
+    void reset() {
+        byteBuffer.clear();
+        payloadLength = 0;
+        sockaddr = null;
+        released = false;
+        sacked = false;
+        retransmitted = false;
+    }
+
     /* 
      * Serialization: Return packet as a byte array
      */
     public byte[] getBytes() {
-        return byteBuffer.array();
+        if (byteBuffer.hasArray())
+            return byteBuffer.array();
+        byte[] bytes = new byte[HEADER_SIZE + getPayloadLength()];
+        byteBuffer.get(0, bytes, 0, bytes.length);
+        return bytes;
     }
 
     public short getVersion() {
@@ -123,6 +284,63 @@ public class GUDPPacket {
         payloadLength = pload.length;
     }
 
+    public long getSentTime() {
+        return sentTime;
+    }
+
+    public void setSentTime(long time) {
+        sentTime = time;
+    }
+
+    public boolean isRetransmitted() {
+        return retransmitted;
+    }
+
+    public void setRetransmitted(boolean value) {
+        retransmitted = value;
+    }
+
+    public boolean isSacked() {
+        return sacked;
+    }
+
+    public void setSacked(boolean value) {
+        sacked = value;
+    }
+
+    /*
+     * SACK bitmap carried by an ACK, 0 if the ACK has none
+     */
+    public long getSack() {
+        if (getPayloadLength() < ACK_SACK_OFFSET + ACK_SACK_LEN)
+            return 0L;
+        return byteBuffer.getLong(HEADER_SIZE + ACK_SACK_OFFSET);
+    }
+
+    public void setSack(long bitmap) {
+        byteBuffer.putLong(HEADER_SIZE + ACK_SACK_OFFSET, bitmap);
+        payloadLength = Math.max(getPayloadLength(), ACK_SACK_OFFSET + ACK_SACK_LEN);
+    }
+
+    /*
+     * Receive window advertised by an ACK, -1 if the ACK has none
+     */
+    public int getRwnd() {
+        if (getPayloadLength() < ACK_RWND_OFFSET + ACK_RWND_LEN)
+            return -1;
+        return byteBuffer.getInt(HEADER_SIZE + ACK_RWND_OFFSET);
+    }
+
+    public void setRwnd(int window) {
+        byteBuffer.putInt(HEADER_SIZE + ACK_RWND_OFFSET, window);
+        payloadLength = Math.max(getPayloadLength(), ACK_RWND_OFFSET + ACK_RWND_LEN);
+    }
+
+    public void setPayload(byte[] pload, int offset, int length) {
+        byteBuffer.put(HEADER_SIZE, pload, offset, length);
+        payloadLength = length;
+    }
+
     public void setSocketAddress(InetSocketAddress socketAddress) {
         sockaddr = socketAddress;
     }
@@ -136,7 +354,6 @@ public class GUDPPacket {
     }
 
     public void getPayload(byte[] dst, int length) {
-        byteBuffer.position(HEADER_SIZE);
-        byteBuffer.get(dst, 0, length);
+        byteBuffer.get(HEADER_SIZE, dst, 0, length);
     }
 }
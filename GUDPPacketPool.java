@@ -0,0 +1,151 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Pool of reusable GUDP packets, each backed by a buffer large enough for a
+ * full datagram (GUDPPacket.MAX_DATAGRAM_LEN). Buffers are either on the
+ * Java heap or direct (off-heap) buffers.
+ *
+ * A packet taken with acquire() goes back to the pool with
+ * GUDPPacket.release(), once it has been ACKed (send side) or delivered to
+ * the application (receive side). When the pool is empty a new packet is
+ * allocated, and packets released to a full pool are left to the GC, so
+ * the pool never blocks.
+ *
+ * The default pool is shared by every socket, and packets are taken and
+ * given back by the application, sender and receiver threads of all of
+ * them, so the free list takes no lock: it is a bounded queue with
+ * sequence-numbered slots, as GUDPMpscQueue, with many consumers as well
+ * as many producers (Vyukov's bounded MPMC queue).
+ */
+class GUDPPacketPool {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static GUDPPacketPool defaultPool;
+
+    private final GUDPPacket[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(0); // next free packet to take
+    private final AtomicLong tail = new AtomicLong(0); // next slot for a released packet
+    private final boolean direct;
+    private final int bufferSize;
+
+    public GUDPPacketPool() {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    public GUDPPacketPool(int capacity, boolean direct) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new GUDPPacket[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++)
+            this.sequences.set(i, i);
+        this.direct = direct;
+        this.bufferSize = GUDPPacket.MAX_DATAGRAM_LEN;
+    }
+
+    /*
+     * Heap pool shared by sockets that do not set their own
+     */
+    public static synchronized GUDPPacketPool getDefault() {
+        if (defaultPool == null)
+            defaultPool = new GUDPPacketPool();
+        return defaultPool;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /*
+     * Free packets in the pool, only a hint while other threads use it
+     */
+    public int available() {
+        return (int) Math.max(0L, tail.get() - head.get());
+    }
+
+    /*
+     * Get an empty packet from the pool
+     */
+    public GUDPPacket acquire() {
+        GUDPPacket packet = poll();
+        if (packet == null)
+            packet = new GUDPPacket(allocate(bufferSize), this);
+        packet.reset();
+        return packet;
+    }
+
+    /*
+     * Get an empty packet with room for length bytes of payload. Payloads
+     * larger than the pooled buffers get an unpooled packet.
+     */
+    public GUDPPacket acquire(int length) {
+        if (length + GUDPPacket.HEADER_SIZE <= bufferSize)
+            return acquire();
+        GUDPPacket packet = new GUDPPacket(allocate(length + GUDPPacket.HEADER_SIZE));
+        packet.reset();
+        return packet;
+    }
+
+    /*
+     * Put the packet back, unless the pool is full
+     */
+    void release(GUDPPacket packet) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (diff < 0) {
+                return; // full: left to the GC
+            } else {
+                position = tail.get(); // another thread took the slot
+            }
+        }
+        slots[index] = packet;
+        sequences.set(index, position + 1); // publish
+    }
+
+    /*
+     * Take a free packet, or null if there is none
+     */
+    private GUDPPacket poll() {
+        long position = head.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1))
+                    break;
+                position = head.get();
+            } else if (diff < 0) {
+                return null; // empty, or the packet there is not published yet
+            } else {
+                position = head.get(); // another thread took the packet
+            }
+        }
+        GUDPPacket packet = slots[index];
+        slots[index] = null;
+        sequences.set(index, position + slots.length); // free for the next round
+        return packet;
+    }
+
+    private ByteBuffer allocate(int size) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+}
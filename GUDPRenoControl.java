@@ -0,0 +1,38 @@
+/*
+ * Reno-style congestion control: slow start up to ssthresh, then additive
+ * increase of one packet per RTT, and multiplicative decrease on loss.
+ */
+class GUDPRenoControl implements GUDPCongestionControl {
+    public static final int INITIAL_WINDOW = 4; // RFC 3390 for ~1000 byte packets
+    public static final int MIN_WINDOW = 2;
+
+    protected double cwnd = INITIAL_WINDOW;
+    protected double ssthresh = Integer.MAX_VALUE;
+
+    public int getWindow() {
+        return (int) cwnd;
+    }
+
+    public double getSsthresh() {
+        return ssthresh;
+    }
+
+    public synchronized void onAck(int ackedPackets, double srtt) {
+        for (int i = 0; i < ackedPackets; i++) {
+            if (cwnd < ssthresh)
+                cwnd += 1; // slow start
+            else
+                cwnd += 1 / cwnd; // congestion avoidance
+        }
+    }
+
+    public synchronized void onLoss() {
+        ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+        cwnd = ssthresh;
+    }
+
+    public synchronized void onTimeout() {
+        ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+        cwnd = 1;
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.NoSuchElementException;
+
+/*
+ * Power-of-two ring buffer of GUDP packets, indexed by sequence number.
+ * Packets are appended in sequence order, so the packet with sequence
+ * number seq lives at slot (head + seq - base) & mask, where base is the
+ * sequence number of the first packet in the buffer. This gives O(1)
+ * lookup by sequence number and O(1) removal from the front, without the
+ * per-node allocation of a linked list.
+ *
+ * Not thread safe: callers synchronize on the buffer (see GUDPEndPoint).
+ */
+class GUDPRingBuffer {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private GUDPPacket[] slots;
+    private int mask;
+    private int head = 0; // slot index of the first packet
+    private int size = 0;
+
+    public GUDPRingBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public GUDPRingBuffer(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new GUDPPacket[cap];
+        mask = cap - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /*
+     * Append a packet at the tail, doubling the storage when full
+     */
+    public void add(GUDPPacket packet) {
+        if (size == slots.length)
+            grow();
+        slots[(head + size) & mask] = packet;
+        size++;
+    }
+
+    public GUDPPacket peek() {
+        if (size == 0)
+            return null;
+        return slots[head];
+    }
+
+    /*
+     * Retrieve and remove the first packet
+     */
+    public GUDPPacket remove() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        GUDPPacket packet = slots[head];
+        slots[head] = null;
+        head = (head + 1) & mask;
+        size--;
+        return packet;
+    }
+
+    /*
+     * Remove a given packet. Removing the first packet is O(1), any other
+     * packet compacts the tail of the buffer.
+     */
+    public boolean remove(GUDPPacket packet) {
+        for (int i = 0; i < size; i++) {
+            if (slots[(head + i) & mask] != packet)
+                continue;
+            if (i == 0) {
+                remove();
+                return true;
+            }
+            for (int j = i; j < size - 1; j++)
+                slots[(head + j) & mask] = slots[(head + j + 1) & mask];
+            slots[(head + size - 1) & mask] = null;
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Get the packet with the given sequence number, or null if it is not
+     * in the buffer. The packet stays in the buffer.
+     */
+    public GUDPPacket get(int seq) {
+        if (size == 0)
+            return null;
+        int offset = seq - slots[head].getSeqno(); // wraps like the seqno space
+        if (offset < 0 || offset >= size)
+            return null;
+        GUDPPacket packet = slots[(head + offset) & mask];
+        if (packet.getSeqno() != seq)
+            return null;
+        return packet;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++)
+            slots[(head + i) & mask] = null;
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        GUDPPacket[] bigger = new GUDPPacket[slots.length << 1];
+        for (int i = 0; i < size; i++)
+            bigger[i] = slots[(head + i) & mask];
+        slots = bigger;
+        mask = bigger.length - 1;
+        head = 0;
+    }
+}
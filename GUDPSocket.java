@@ -2,31 +2,148 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.io.IOException;
 
 public class GUDPSocket implements GUDPSocketAPI {
-    DatagramSocket datagramSocket;
+    private static final long SEND_BACKOFF = 50000L; // (50 us) send() waiting for room in a full queue
+    private static final long SEND_BUFFER_WAIT = 10000000L; // (10 ms) at most, send() waiting for ACKs
 
-    private LinkedList<GUDPEndPoint> sendQueue = new LinkedList<>();
-    private LinkedList<GUDPEndPoint> receiveQueue = new LinkedList<>();
+    DatagramSocket datagramSocket;
 
-    private SenderThread senderThread = new SenderThread();
+    /* Endpoints by remote address */
+    private ConcurrentHashMap<InetSocketAddress, GUDPEndPoint> sendQueue = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<InetSocketAddress, GUDPEndPoint> receiveQueue = new ConcurrentHashMap<>();
+
+    /*
+     * Delivery: receive endpoints holding packets for the application, in
+     * the order they became readable, each queued once. receive() waits on
+     * dataAvailable, or on the endpoint's own condition when it asks for a
+     * given peer.
+     */
+    private final ReentrantLock receiveLock = new ReentrantLock();
+    private final Condition dataAvailable = this.receiveLock.newCondition();
+    private final ArrayDeque<GUDPEndPoint> readableEndPoints = new ArrayDeque<>();
+
+    /*
+     * Thread mode: receive endpoints owing a delayed ACK, each queued once.
+     * Only used by the receiver thread, which sends the ACKs when they are
+     * due (see sendDelayedAcks).
+     */
+    private final ArrayDeque<GUDPEndPoint> delayedAcks = new ArrayDeque<>();
+
+    /* Send endpoints with an event to handle (INIT, SEND, TIMEOUT, RETRANSMIT), each queued once */
+    private ConcurrentLinkedQueue<GUDPEndPoint> readyEndPoints = new ConcurrentLinkedQueue<>();
+
+    /*
+     * Thread mode: sender and receiver loops, created on first use by
+     * threadFactory (platform threads, or virtual threads with
+     * GUDPThreads.virtual())
+     */
+    private ThreadFactory threadFactory;
+    private final Object threadsLock = new Object();
+
+    private volatile Thread senderThread;
     private boolean senderThreadRunning;
 
-    private ReceiverThread receiverThread = new ReceiverThread();
+    private volatile Thread receiverThread;
     private boolean receiverThreadRunning;
 
-    private Object finishWaiting;
+    private Object finishWaiting = new Object();
+
+    private GUDPTimerWheel timerWheel;
+
+    private GUDPPacketPool packetPool = GUDPPacketPool.getDefault();
+    private DatagramPacket sendDatagram = new DatagramPacket(new byte[0], 0);
+    private final ReentrantLock transmitLock = new ReentrantLock(); // sendDatagram and sendScratch, in thread mode
+    private byte[] sendScratch = new byte[GUDPPacket.MAX_DATAGRAM_LEN];
+    private GUDPPacket receiveSpare; // pooled packet for the next channel read
+
+    private boolean selectiveRepeat = false; // Go-Back-N by default
+    private boolean piggybackBsn = false; // separate BSN packet by default
+    private boolean debug = false; // hex dump of every packet in the trace
+    private Supplier<GUDPCongestionControl> congestionControlFactory = GUDPRenoControl::new;
+    private int receiveBufferSize = GUDPEndPoint.DEFAULT_RECEIVE_BUFFER;
+    private int sendBufferSize = GUDPEndPoint.DEFAULT_SEND_BUFFER;
+    private int ackFrequency = GUDPEndPoint.ACK_FREQUENCY;
+    private long ackDelay = GUDPEndPoint.ACK_DELAY;
+    private int dupAckThreshold = GUDPEndPoint.DUP_ACK_THRESHOLD;
+
+    /*
+     * Non-blocking mode: the socket is served by an event loop instead of
+     * its own sender and receiver threads
+     */
+    private DatagramChannel datagramChannel;
+    private GUDPEventLoop eventLoop;
+    private SelectionKey selectionKey;
+    private ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private ArrayDeque<SocketAddress> pendingWriteAddresses = new ArrayDeque<>();
 
     public GUDPSocket(DatagramSocket socket) {
+        this(socket, GUDPTimerWheel.getDefault());
+    }
+
+    public GUDPSocket(DatagramSocket socket, GUDPTimerWheel wheel) {
+        this(socket, wheel, GUDPThreads.platform());
+    }
+
+    /*
+     * Create a socket whose sender and receiver loops run on threads from
+     * factory, for instance GUDPSocket(socket, GUDPThreads.virtual()) to
+     * host many sockets without a native thread pair each. Timers run on
+     * the shared timer wheel in any case.
+     */
+    public GUDPSocket(DatagramSocket socket, ThreadFactory factory) {
+        this(socket, GUDPTimerWheel.getDefault(), factory);
+    }
+
+    public GUDPSocket(DatagramSocket socket, GUDPTimerWheel wheel, ThreadFactory factory) {
         datagramSocket = socket;
+        timerWheel = wheel;
+        threadFactory = factory;
         senderThreadRunning = true;
         receiverThreadRunning = true;
     }
 
+    /*
+     * Create a socket on a DatagramChannel, served by the given event loop.
+     * The channel is switched to non-blocking mode.
+     */
+    public GUDPSocket(DatagramChannel channel, GUDPEventLoop loop) throws IOException {
+        datagramChannel = channel;
+        datagramSocket = channel.socket();
+        eventLoop = loop;
+        timerWheel = loop.getTimerWheel();
+        senderThreadRunning = false;
+        receiverThreadRunning = false;
+        channel.configureBlocking(false);
+        loop.register(this);
+    }
+
+    public GUDPSocket(DatagramChannel channel) throws IOException {
+        this(channel, GUDPEventLoop.getDefault());
+    }
+
     public int getPort() {
         return this.datagramSocket.getLocalPort();
     }
@@ -35,37 +152,241 @@ public class GUDPSocket implements GUDPSocketAPI {
         return this.datagramSocket.getLocalAddress();
     }
 
+    public boolean isSelectiveRepeat() {
+        return this.selectiveRepeat;
+    }
+
+    /*
+     * Selective Repeat: the receiver buffers out-of-order packets and reports
+     * them with a SACK bitmap in its ACKs, and the sender retransmits only the
+     * packets that were not SACKed. Both ends should use the same mode.
+     */
+    public void setSelectiveRepeat(boolean value) {
+        this.selectiveRepeat = value;
+    }
+
+    public boolean isDebug() {
+        return this.debug;
+    }
+
+    /*
+     * Dump the content of every packet sent and received in the trace. Off
+     * by default: windows hold thousands of packets.
+     */
+    public void setDebug(boolean value) {
+        this.debug = value;
+    }
+
+    public boolean isPiggybackBsn() {
+        return this.piggybackBsn;
+    }
+
+    /*
+     * Send the first DATA packet to a new peer as its BSN packet (a BSN
+     * with a payload), for endpoints created from now on. This saves the
+     * separate BSN packet, and the data gets to the application as soon as
+     * the BSN does: a peer sending a single message is done in one round
+     * trip. Receivers always accept such packets.
+     */
+    public void setPiggybackBsn(boolean value) {
+        this.piggybackBsn = value;
+    }
+
+    /*
+     * Congestion controller for endpoints created from now on, for instance
+     * GUDPCubicControl::new. Reno by default.
+     */
+    public void setCongestionControl(Supplier<GUDPCongestionControl> factory) {
+        this.congestionControlFactory = factory;
+    }
+
+    public int getReceiveBufferSize() {
+        return this.receiveBufferSize;
+    }
+
+    /*
+     * Number of packets each peer may have waiting for receive(), for
+     * endpoints created from now on. The free space is advertised in ACKs,
+     * so a slow application throttles the sender instead of growing the
+     * heap; packets arriving beyond it are dropped.
+     */
+    public void setReceiveBufferSize(int packets) {
+        if (packets < 1)
+            throw new IllegalArgumentException("Receive buffer must hold at least one packet");
+        this.receiveBufferSize = packets;
+    }
+
+    public int getSendBufferSize() {
+        return this.sendBufferSize;
+    }
+
+    /*
+     * Number of packets each peer may have sent or queued but not ACKed, for
+     * endpoints created from now on (twice the window if that is more). Past
+     * it send() waits for ACKs, so a slow or stalled receiver throttles the
+     * application instead of growing the heap.
+     */
+    public void setSendBufferSize(int packets) {
+        if (packets < 1)
+            throw new IllegalArgumentException("Send buffer must hold at least one packet");
+        this.sendBufferSize = packets;
+    }
+
+    public int getAckFrequency() {
+        return this.ackFrequency;
+    }
+
+    public long getAckDelay() {
+        return this.ackDelay;
+    }
+
+    /*
+     * Delayed ACKs: one cumulative ACK for every `packets` in-order packets,
+     * or `delay` milliseconds after the first one not ACKed. Gaps, duplicates,
+     * BSN and FIN are always ACKed at once. setAckFrequency(1, 0) ACKs every
+     * packet.
+     */
+    public void setAckFrequency(int packets, long delay) {
+        if (packets < 1 || delay < 0)
+            throw new IllegalArgumentException("Invalid ACK frequency " + packets + " / " + delay + " ms");
+        this.ackFrequency = packets;
+        this.ackDelay = delay;
+    }
+
+    public int getDupAckThreshold() {
+        return this.dupAckThreshold;
+    }
+
+    /*
+     * Fast retransmit: number of duplicate ACKs that trigger a retransmission
+     * without waiting for the timeout, 0 to only rely on the timer
+     */
+    public void setDupAckThreshold(int threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("Invalid duplicate ACK threshold " + threshold);
+        this.dupAckThreshold = threshold;
+    }
+
+    public GUDPPacketPool getPacketPool() {
+        return this.packetPool;
+    }
+
+    /*
+     * Use another packet pool, for instance one with direct buffers.
+     * Packets already queued go back to the pool they came from.
+     */
+    public void setPacketPool(GUDPPacketPool pool) {
+        this.packetPool = pool;
+    }
+
+    /*
+     * Hand the packet over to the sender through the endpoint's lock-free
+     * queue; the sender gives it its sequence number (see sequencePending).
+     * Only waits if the sender is a full queue behind.
+     */
     public void send(DatagramPacket packet) throws IOException {
-        GUDPEndPoint packetEndPoint = getPacketEndPoint(packet);
-        int endPointQueueIndex = getEnpointSendQueueIndex(packetEndPoint);
+        GUDPEndPoint endPoint = getSendEndPoint((InetSocketAddress) packet.getSocketAddress());
 
-        GUDPPacket gudppacket = GUDPPacket.encapsulate(packet);
+        GUDPPacket gudppacket = GUDPPacket.encapsulate(packet, this.packetPool);
 
-        if (!this.senderThread.isAlive()) {
-            senderThread.start();
-        }
+        startThreads();
 
-        if (!this.receiverThread.isAlive()) {
-            receiverThread.start();
-        }
+        while (!endPoint.offerPending(gudppacket))
+            waitForSender(endPoint, gudppacket);
+        wakeupSender(endPoint);
 
-        synchronized (this.sendQueue) {
-            GUDPEndPoint endPoint = this.sendQueue.get(endPointQueueIndex);
-            int last = endPoint.getLast();
-            gudppacket.setSeqno(last + 1);
-            endPoint.setLast(last + 1);
-            if (endPoint.getState() == GUDPEndPoint.endPointState.FINISHED
-                    || endPoint.getState() == GUDPEndPoint.endPointState.CLOSED)
-                endPoint.setState(GUDPEndPoint.endPointState.READY);
+        // datagramSocket.send(udppacket);
+    }
+
+    /*
+     * Send one packet to destination, with the remaining bytes of parts as
+     * payload, copied once into the GUDP packet: for instance a message
+     * header and a slice of a mapped file, without building a byte[] first.
+     */
+    public void send(InetSocketAddress destination, ByteBuffer... parts) throws IOException {
+        GUDPEndPoint endPoint = getSendEndPoint(destination);
+
+        GUDPPacket gudppacket = GUDPPacket.encapsulate(destination, parts, this.packetPool);
+
+        startThreads();
+
+        while (!endPoint.offerPending(gudppacket))
+            waitForSender(endPoint, gudppacket);
+        wakeupSender(endPoint);
+    }
 
-            this.sendQueue.get(endPointQueueIndex).add(gudppacket);
-            this.sendQueue.notifyAll();
+    /*
+     * Same as send(packet), without waiting: returns false if the endpoint's
+     * queue is full. For timer tasks, which must not block.
+     */
+    boolean trySend(DatagramPacket packet) throws IOException {
+        if (this.datagramSocket.isClosed())
+            throw new IOException("Socket closed");
+        GUDPEndPoint endPoint = getSendEndPoint((InetSocketAddress) packet.getSocketAddress());
+        GUDPPacket gudppacket = GUDPPacket.encapsulate(packet, this.packetPool);
+
+        startThreads();
+
+        if (!endPoint.offerPending(gudppacket)) {
+            gudppacket.release();
+            return false;
+        }
+        wakeupSender(endPoint);
+        return true;
+    }
 
-            // System.out.println("Added packet seq nbr " + (last + 1) + " to endpoint " +
-            // endPoint);
+    /*
+     * Run task once, delay milliseconds from now, on the socket's timer
+     * wheel. In non-blocking mode the timer is set from the event loop, so
+     * that the loop does not sleep past it.
+     */
+    void schedule(Runnable task, long delay) {
+        if (this.eventLoop == null) {
+            this.timerWheel.schedule(task, delay);
+            return;
         }
+        this.eventLoop.execute(() -> this.timerWheel.schedule(task, delay));
+    }
 
-        // datagramSocket.send(udppacket);
+    /*
+     * Send a batch of packets, for one or many destinations. Packets for the
+     * same destination keep their order. Each run of packets for the same
+     * destination is queued with one update of the endpoint's queue, and the
+     * sender is woken up once per run instead of once per packet.
+     */
+    public void send(List<DatagramPacket> packets) throws IOException {
+        int count = packets.size();
+        GUDPPacket[] batch = new GUDPPacket[count];
+
+        startThreads();
+
+        int start = 0;
+        while (start < count) {
+            InetSocketAddress address = (InetSocketAddress) packets.get(start).getSocketAddress();
+            GUDPEndPoint endPoint = getSendEndPoint(address);
+            int end = start;
+            while (end < count && address.equals(packets.get(end).getSocketAddress())) {
+                batch[end] = GUDPPacket.encapsulate(packets.get(end), this.packetPool);
+                end++;
+            }
+
+            int offset = start;
+            while (offset < end) {
+                int queued = endPoint.offerPending(batch, offset, end - offset);
+                offset += queued;
+                if (queued == 0) {
+                    // full queue, as in waitForSender()
+                    if (this.datagramSocket.isClosed()) {
+                        for (int i = offset; i < end; i++)
+                            batch[i].release();
+                        throw new IOException("Socket closed");
+                    }
+                    waitForRoom(endPoint);
+                }
+            }
+            wakeupSender(endPoint);
+            start = end;
+        }
     }
 
     public void receive(DatagramPacket packet) throws IOException {
@@ -75,73 +396,188 @@ public class GUDPSocket implements GUDPSocketAPI {
         // GUDPPacket gudppacket = GUDPPacket.unpack(udppacket);
         // gudppacket.decapsulate(packet);
 
+        receive(packet, 0L);
+    }
+
+    /*
+     * Same as receive(packet), waiting at most timeout milliseconds (0 waits
+     * forever) before throwing a SocketTimeoutException. If packet has an
+     * address, only data from that peer is returned.
+     */
+    public void receive(DatagramPacket packet, long timeout) throws IOException {
         InetAddress packetAddress = packet.getAddress();
         int packetPort = packet.getPort();
 
-        if (!this.receiverThread.isAlive())
-            receiverThread.start();
-
-        while (this.receiveQueue.size() == 0 || !messagesInSocketQueue(this.receiveQueue)) {
-            try {
-                this.receiveQueue.wait();
-            } catch (Exception e) {
-                // TODO: handle exception
+        startThreads();
+
+        GUDPEndPoint peer = null;
+        if (packetAddress != null)
+            peer = getReceiveEndPoint(new InetSocketAddress(packetAddress, packetPort));
+
+        GUDPEndPoint source;
+        GUDPPacket gudpPacketReceived;
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.receiveLock.lock();
+        try {
+            while (true) {
+                if (this.datagramSocket.isClosed())
+                    throw new SocketException("Socket closed");
+                source = peer == null ? pollReadable() : peer;
+                if (source != null && !source.isEmptyBuffer())
+                    break;
+
+                Condition condition = peer == null ? this.dataAvailable : peer.getReceiveCondition();
+                if (timeout <= 0) {
+                    condition.await();
+                } else {
+                    if (nanos <= 0)
+                        throw new SocketTimeoutException("Receive timed out");
+                    nanos = condition.awaitNanos(nanos);
+                }
             }
-
+            gudpPacketReceived = source.remove();
+            if (peer == null && !source.isEmptyBuffer())
+                this.readableEndPoints.add(source); // back of the line, for fairness between peers
+            else if (peer == null)
+                source.setReadable(false);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for data", e);
+        } finally {
+            this.receiveLock.unlock();
         }
 
-        if (packetAddress == null) {
-            for (GUDPEndPoint endPoint : this.receiveQueue) {
-                if (endPoint.isEmptyBuffer())
-                    continue;
+        gudpPacketReceived.decapsulate(packet);
+        gudpPacketReceived.release();
+        System.out.println("RECEIVE METHOD " + packet.getAddress() + ':' + packet.getPort());
+        sendWindowUpdate(source);
+    }
 
-                GUDPPacket gudpPacketReceived = endPoint.remove();
-                gudpPacketReceived.decapsulate(packet);
-                System.out.println("RECEIVE METHOD " + packet.getAddress() + ':' + packet.getPort());
-                return;
+    /*
+     * Batch receive: wait for data from any peer, then fill in as many of
+     * packets as there are packets ready, with one acquisition of the receive
+     * lock. Returns the number of packets filled in, at least 1. The packets'
+     * addresses are ignored (no filtering by peer), so they can be reused
+     * from one call to the next. Filling in stops before a payload larger
+     * than the data array of the packet it would go into: that payload is
+     * kept for a later call, which throws an IOException if it is the first.
+     */
+    public int receive(DatagramPacket[] packets) throws IOException {
+        return receive(packets, 0L);
+    }
+
+    public int receive(DatagramPacket[] packets, long timeout) throws IOException {
+        if (packets.length == 0)
+            return 0;
+
+        startThreads();
+
+        GUDPPacket[] received = new GUDPPacket[packets.length];
+        ArrayList<GUDPEndPoint> sources = new ArrayList<>(); // window updates to check
+        int count = 0;
+        int tooLong = 0; // length of a payload that did not fit, if any
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.receiveLock.lock();
+        try {
+            GUDPEndPoint source;
+            while (true) {
+                if (this.datagramSocket.isClosed())
+                    throw new SocketException("Socket closed");
+                source = pollReadable();
+                if (source != null)
+                    break;
+
+                if (timeout <= 0) {
+                    this.dataAvailable.await();
+                } else {
+                    if (nanos <= 0)
+                        throw new SocketTimeoutException("Receive timed out");
+                    nanos = this.dataAvailable.awaitNanos(nanos);
+                }
+            }
+            // drain each readable endpoint in turn, as far as there is room
+            while (source != null) {
+                while (count < received.length && !source.isEmptyBuffer()) {
+                    int length = source.peek().getPayloadLength();
+                    if (length > packets[count].getData().length) {
+                        tooLong = length;
+                        break;
+                    }
+                    received[count++] = source.remove();
+                }
+                sources.add(source);
+                if (!source.isEmptyBuffer()) {
+                    this.readableEndPoints.add(source); // back of the line, for fairness between peers
+                    break;
+                }
+                source.setReadable(false);
+                source = count < received.length ? pollReadable() : null;
             }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for data", e);
+        } finally {
+            this.receiveLock.unlock();
         }
 
-        for (GUDPEndPoint endPoint : this.receiveQueue) {
-            if (endPoint.isEmptyBuffer())
-                continue;
-            if (!(packetAddress.equals(endPoint.getRemoteEndPoint().getAddress())
-                    && packetPort == endPoint.getRemoteEndPoint().getPort()))
-                continue;
+        try {
+            for (int i = 0; i < count; i++)
+                received[i].decapsulate(packets[i]);
+        } finally {
+            for (int i = 0; i < count; i++)
+                received[i].release();
+        }
+        if (count == 0)
+            throw new IOException(String.format("Receive buffer too short: %d bytes for a payload of %d bytes",
+                    packets[0].getData().length, tooLong));
+        System.out.println("RECEIVE METHOD " + count + " packets");
+        for (GUDPEndPoint source : sources)
+            sendWindowUpdate(source);
+        return count;
+    }
 
-            GUDPPacket gudpPacketReceived = endPoint.remove();
-            gudpPacketReceived.decapsulate(packet);
-            System.out.println("RECEIVE METHOD " + packet.getAddress() + ':' + packet.getPort());
-            return;
+    /*
+     * Next readable endpoint, taken off the queue. Endpoints emptied by a
+     * receive() for a given peer are dropped here. Called with receiveLock held.
+     */
+    private GUDPEndPoint pollReadable() {
+        GUDPEndPoint endPoint;
+        while ((endPoint = this.readableEndPoints.poll()) != null) {
+            if (!endPoint.isEmptyBuffer())
+                return endPoint;
+            endPoint.setReadable(false);
         }
+        return null;
     }
 
     public void finish() throws IOException {
-        for (GUDPEndPoint endPoint : this.sendQueue) {
-            int lastSeq = endPoint.getLast();
+        for (GUDPEndPoint endPoint : this.sendQueue.values()) {
             InetSocketAddress endPointSocketAddress = endPoint.getRemoteEndPoint();
-
-            byte[] buffer = new byte[0];
-            DatagramPacket FINPacket = new DatagramPacket(buffer, 0, endPointSocketAddress);
-
-            GUDPPacket gudpPacket = GUDPPacket.encapsulate(FINPacket);
-            gudpPacket.setType(GUDPPacket.TYPE_FIN);
-            gudpPacket.setSeqno(lastSeq + 1);
-            endPoint.setLast(lastSeq + 1);
-
-            endPoint.add(gudpPacket);
-            endPoint.setState(GUDPEndPoint.endPointState.FINISHED);
-            System.out.println("Finish: adding FINPACKET to endpoint " + endPointSocketAddress);
-            synchronized (this.sendQueue) {
-                this.sendQueue.notifyAll();
+            GUDPPacket gudpPacket = GUDPPacket.control(this.packetPool, GUDPPacket.TYPE_FIN, 0,
+                    endPointSocketAddress);
+            while (true) {
+                // FINISHED right away, under the lock so the sender cannot
+                // close the endpoint before the FIN is sequenced
+                endPoint.getSendLock().lock();
+                try {
+                    if (endPoint.offerPending(gudpPacket)) {
+                        endPoint.setState(GUDPEndPoint.endPointState.FINISHED);
+                        break;
+                    }
+                } finally {
+                    endPoint.getSendLock().unlock();
+                }
+                waitForSender(endPoint, gudpPacket);
             }
+            System.out.println("Finish: adding FINPACKET to endpoint " + endPointSocketAddress);
+            wakeupSender(endPoint);
         }
 
-        while (!allEndpointsClosed(sendQueue)) {
-            try {
-                finishWaiting.wait();
-            } catch (Exception e) {
-                // TODO: handle exception
+        synchronized (this.finishWaiting) {
+            while (!allEndpointsClosed(this.sendQueue.values())) {
+                try {
+                    this.finishWaiting.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while finishing", e);
+                }
             }
         }
 
@@ -154,77 +590,327 @@ public class GUDPSocket implements GUDPSocketAPI {
         System.out.println("APP: Closing socket " + this.datagramSocket.getLocalSocketAddress());
         this.senderThreadRunning = false;
         this.receiverThreadRunning = false;
-        this.senderThread.interrupt();
-        this.receiverThread.interrupt();
+        synchronized (this.threadsLock) {
+            if (this.senderThread != null)
+                this.senderThread.interrupt();
+            if (this.receiverThread != null)
+                this.receiverThread.interrupt();
+        }
         clearSendQueue();
+        this.readyEndPoints.clear();
+        if (this.eventLoop != null) {
+            this.eventLoop.unregister(this);
+            this.datagramChannel.close();
+        }
         if (!this.datagramSocket.isClosed())
             this.datagramSocket.close();
+        this.receiveLock.lock();
+        try {
+            // blocked receive() calls fail with "Socket closed"
+            this.dataAvailable.signalAll();
+            for (GUDPEndPoint endPoint : this.receiveQueue.values())
+                endPoint.getReceiveCondition().signalAll();
+        } finally {
+            this.receiveLock.unlock();
+        }
     }
 
-    private void clearSendQueue() {
-        for (GUDPEndPoint endPoint : this.sendQueue) {
-            endPoint.removeAll();
-            endPoint.stopTimer();
-            endPoint.setState(GUDPEndPoint.endPointState.CLOSED);
+    private void startThreads() {
+        if (this.eventLoop != null)
+            return;
+        synchronized (this.threadsLock) {
+            if (!this.senderThreadRunning)
+                return;
+            if (this.senderThread == null) {
+                this.senderThread = this.threadFactory.newThread(new SenderThread());
+                this.senderThread.start();
+            }
+            if (this.receiverThread == null) {
+                this.receiverThread = this.threadFactory.newThread(new ReceiverThread());
+                this.receiverThread.start();
+            }
         }
+    }
 
-        this.sendQueue.clear();
+    /*
+     * Tell the sender side that an endpoint has work to do: put it on the
+     * ready queue, unless it is already there. In thread mode sendQueue is
+     * only the monitor the sender thread sleeps on: it is never held while
+     * sending.
+     */
+    private void wakeupSender(GUDPEndPoint endPoint) {
+        if (!endPoint.markScheduled())
+            return;
+        this.readyEndPoints.add(endPoint);
+        if (this.eventLoop != null) {
+            this.eventLoop.wakeup(this);
+            return;
+        }
+        Thread sender = this.senderThread;
+        if (sender != null)
+            LockSupport.unpark(sender);
     }
 
-    private int getEnpointSendQueueIndex(GUDPEndPoint endPoint) throws IOException {
-        synchronized (this.sendQueue) {
+    /*
+     * The endpoint's queue from send() is full: let the sender catch up
+     */
+    private void waitForSender(GUDPEndPoint endPoint, GUDPPacket packet) throws IOException {
+        if (this.datagramSocket.isClosed()) {
+            packet.release();
+            throw new IOException("Socket closed");
+        }
+        waitForRoom(endPoint);
+    }
 
-            for (GUDPEndPoint queuedEndPoint : this.sendQueue) {
-                if (endPoint.getRemoteEndPoint().getAddress().equals(queuedEndPoint.getRemoteEndPoint().getAddress())
-                        && endPoint.getRemoteEndPoint().getPort() == queuedEndPoint.getRemoteEndPoint().getPort()) {
-                    return this.sendQueue.indexOf(queuedEndPoint);
+    /*
+     * The endpoint's queue is full. If the send buffer is full too, the
+     * sender can do nothing before ACKs come: wait until sequencePending()
+     * makes room. Otherwise the sender is only behind: wake it up and try
+     * again shortly.
+     */
+    private void waitForRoom(GUDPEndPoint endPoint) throws IOException {
+        if (endPoint.isSendBufferFull()) {
+            endPoint.getSendLock().lock();
+            try {
+                if (endPoint.isSendBufferFull())
+                    endPoint.getSendRoom().awaitNanos(SEND_BUFFER_WAIT); // bounded: the socket may be closed
+                return;
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for room in the send buffer", e);
+            } finally {
+                endPoint.getSendLock().unlock();
+            }
+        }
+        wakeupSender(endPoint);
+        LockSupport.parkNanos(SEND_BACKOFF);
+    }
+
+    /*
+     * Sender side of the handoff from send() and finish(): number the packets
+     * queued since the last pass and append them to the send buffer, as far
+     * as it has room. The rest stays queued until ACKs free some, and send()
+     * waits meanwhile. Called with the endpoint lock held.
+     */
+    private void sequencePending(GUDPEndPoint endPoint) {
+        GUDPPacket packet;
+        boolean moved = false;
+        while (!endPoint.isSendBufferFull() && (packet = endPoint.pollPending()) != null) {
+            moved = true;
+            int last = endPoint.getLast() + 1;
+            if (endPoint.isPiggybackBsn()) {
+                // first packet to the peer: DATA becomes the BSN, anything
+                // else still needs a BSN of its own
+                endPoint.setPiggybackBsn(false);
+                if (packet.getType() == GUDPPacket.TYPE_DATA) {
+                    packet.setType(GUDPPacket.TYPE_BSN);
+                } else {
+                    endPoint.add(GUDPPacket.control(this.packetPool, GUDPPacket.TYPE_BSN, last,
+                            endPoint.getRemoteEndPoint()));
+                    endPoint.setLast(last);
+                    last++;
                 }
             }
-            Random rand = new Random();
-            int endPointBSN = rand.nextInt();
+            packet.setSeqno(last);
+            endPoint.setLast(last);
+            endPoint.add(packet);
 
-            InetSocketAddress endPointSocketAddress = endPoint.getRemoteEndPoint();
-            System.out.println("Creating new endpoint " + endPointSocketAddress);
+            if (packet.getType() == GUDPPacket.TYPE_FIN)
+                endPoint.setState(GUDPEndPoint.endPointState.FINISHED);
+            else if (endPoint.getState() == GUDPEndPoint.endPointState.FINISHED
+                    || endPoint.getState() == GUDPEndPoint.endPointState.CLOSED)
+                endPoint.setState(GUDPEndPoint.endPointState.READY);
+            if (endPoint.getEvent() == GUDPEndPoint.readyEvent.WAIT)
+                endPoint.setEvent(GUDPEndPoint.readyEvent.SEND); // idle endpoint: nothing else will
+        }
+        if (moved)
+            endPoint.getSendRoom().signalAll();
+    }
+
+    /*
+     * Put a GUDP packet on the wire, with a blocking send in thread mode, or
+     * a non-blocking one in event loop mode. In event loop mode a datagram
+     * that does not fit in the socket buffer is kept until the channel is
+     * writable again.
+     */
+    private void transmit(GUDPPacket packet) throws IOException {
+        if (this.eventLoop == null) {
+            this.transmitLock.lock();
+            try {
+                packet.pack(this.sendDatagram, this.sendScratch);
+                this.datagramSocket.send(this.sendDatagram);
+            } finally {
+                this.transmitLock.unlock();
+            }
+            return;
+        }
+        ByteBuffer buffer = packet.datagramBuffer();
+        if (this.pendingWrites.isEmpty() && this.datagramChannel.send(buffer, packet.getSocketAddress()) > 0)
+            return;
+        // the packet may be released before the channel is writable again: keep a copy
+        buffer.position(0);
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        this.pendingWrites.add(copy);
+        this.pendingWriteAddresses.add(packet.getSocketAddress());
+        this.eventLoop.setWriteInterest(this, true);
+    }
 
-            endPoint.setBase(endPointBSN);
-            endPoint.setNextseqnum(endPointBSN);
+    /*
+     * Event loop callbacks: only called from the event loop thread
+     */
+    DatagramChannel getChannel() {
+        return this.datagramChannel;
+    }
 
-            byte[] buffer = new byte[0];
-            DatagramPacket BSNPacket = new DatagramPacket(buffer, 0, endPointSocketAddress);
+    SelectionKey getSelectionKey() {
+        return this.selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey key) {
+        this.selectionKey = key;
+    }
 
-            GUDPPacket gudpPacket = GUDPPacket.encapsulate(BSNPacket);
-            gudpPacket.setType(GUDPPacket.TYPE_BSN);
-            gudpPacket.setSeqno(endPointBSN);
+    void handleReadable() {
+        while (true) {
+            if (this.receiveSpare == null)
+                this.receiveSpare = this.packetPool.acquire();
+            ByteBuffer buffer = this.receiveSpare.receiveBuffer();
+            SocketAddress from;
+            try {
+                from = this.datagramChannel.receive(buffer);
+            } catch (IOException e) {
+                System.err.println(">>Event loop: error receiving packet on socket " + this + " " + e);
+                return;
+            }
+            if (from == null)
+                return;
+            GUDPPacket receivedPacket = this.receiveSpare;
+            this.receiveSpare = null;
+            try {
+                receivedPacket.unpack(buffer.position(), (InetSocketAddress) from);
+            } catch (Exception e) {
+                receivedPacket.release();
+                System.err.println(">>Event loop: error handling packet on socket " + this + " " + e);
+                continue;
+            }
+            try {
+                handleGUDPPacket(receivedPacket); // owns the packet from here on, even if it throws
+            } catch (Exception e) {
+                System.err.println(">>Event loop: error handling packet on socket " + this + " " + e);
+            }
+        }
+    }
 
-            endPoint.add(gudpPacket);
-            endPoint.setLast(endPointBSN);
+    void handleWritable() throws IOException {
+        while (!this.pendingWrites.isEmpty()) {
+            ByteBuffer buffer = this.pendingWrites.peek();
+            if (this.datagramChannel.send(buffer, this.pendingWriteAddresses.peek()) == 0)
+                return;
+            this.pendingWrites.remove();
+            this.pendingWriteAddresses.remove();
+        }
+        this.eventLoop.setWriteInterest(this, false);
+    }
 
-            this.sendQueue.add(endPoint);
-            return this.sendQueue.indexOf(endPoint);
+    /*
+     * Run the sender state machine over the endpoints on the ready queue,
+     * each under its own lock, so that send() to one peer never waits for
+     * transmission to another. Idle endpoints are never visited. An endpoint
+     * with more to do (e.g. data after its BSN) goes back to the queue for
+     * the next pass.
+     */
+    void handleSendQueue() {
+        for (int count = this.readyEndPoints.size(); count > 0; count--) {
+            GUDPEndPoint endPoint = this.readyEndPoints.poll();
+            if (endPoint == null)
+                break;
+            endPoint.clearScheduled(); // events from now on queue it again
+            try {
+                endPoint.getSendLock().lock();
+                try {
+                    sequencePending(endPoint);
+                    handleGUDPEndpoint(endPoint);
+                } finally {
+                    endPoint.getSendLock().unlock();
+                }
+            } catch (Exception e) {
+                System.err.println(">>Sender: Error sending packet on enpoint"
+                        + endPoint.getRemoteEndPoint() + ". error: " + e);
+            }
+            if (hasSenderEvent(endPoint))
+                wakeupSender(endPoint);
         }
     }
 
-    private GUDPEndPoint getPacketEndPoint(DatagramPacket packet) {
-        InetAddress packetAddress = packet.getAddress();
-        int packetPort = packet.getPort();
-        return new GUDPEndPoint(packetAddress, packetPort);
+    private void clearSendQueue() {
+        for (GUDPEndPoint endPoint : this.sendQueue.values()) {
+            endPoint.getSendLock().lock();
+            try {
+                GUDPPacket pending;
+                while ((pending = endPoint.pollPending()) != null)
+                    pending.release();
+            } finally {
+                endPoint.getSendLock().unlock();
+            }
+            endPoint.removeAll();
+            endPoint.stopTimer();
+            endPoint.setState(GUDPEndPoint.endPointState.CLOSED);
+        }
+
+        this.sendQueue.clear();
     }
 
-    private GUDPEndPoint getPacketEndPoint(GUDPPacket packet) {
-        InetAddress packetAddress = packet.getSocketAddress().getAddress();
-        int packetPort = packet.getSocketAddress().getPort();
-        return new GUDPEndPoint(packetAddress, packetPort);
+    /*
+     * Send endpoint of a remote address, created with a random BSN on first use
+     */
+    private GUDPEndPoint getSendEndPoint(InetSocketAddress address) {
+        GUDPEndPoint endPoint = this.sendQueue.get(address);
+        if (endPoint != null)
+            return endPoint;
+        return this.sendQueue.computeIfAbsent(address, this::createSendEndPoint);
     }
 
-    private boolean messagesInSocketQueue(LinkedList<GUDPEndPoint> queue) {
-        for (GUDPEndPoint gudpEndPoint : queue) {
-            if (!gudpEndPoint.isEmptyBuffer())
-                return true;
+    private GUDPEndPoint createSendEndPoint(InetSocketAddress endPointSocketAddress) {
+        GUDPEndPoint endPoint = new GUDPEndPoint(endPointSocketAddress.getAddress(), endPointSocketAddress.getPort());
+        Random rand = new Random();
+        int endPointBSN = rand.nextInt();
+
+        System.out.println("Creating new endpoint " + endPointSocketAddress);
+
+        endPoint.setBase(endPointBSN);
+        endPoint.setNextseqnum(endPointBSN);
+        endPoint.setTimerWheel(this.timerWheel);
+        endPoint.setCongestionControl(this.congestionControlFactory.get());
+        endPoint.setTimeoutListener(() -> wakeupSender(endPoint));
+        endPoint.setSendBufferSize(this.sendBufferSize);
+        endPoint.createPending(GUDPMpscQueue.DEFAULT_CAPACITY);
+
+        if (this.piggybackBsn) {
+            // the first packet queued gets the BSN, see sequencePending()
+            endPoint.setPiggybackBsn(true);
+            endPoint.setLast(endPointBSN - 1);
+            return endPoint;
         }
-        return false;
+
+        GUDPPacket gudpPacket = GUDPPacket.control(this.packetPool, GUDPPacket.TYPE_BSN, endPointBSN,
+                endPointSocketAddress);
+
+        endPoint.add(gudpPacket);
+        endPoint.setLast(endPointBSN);
+        return endPoint;
+    }
+
+    /*
+     * The endpoint has an event to handle: it is not waiting for an ACK or
+     * its timer
+     */
+    private boolean hasSenderEvent(GUDPEndPoint endPoint) {
+        return endPoint.getState() != GUDPEndPoint.endPointState.CLOSED
+                && endPoint.getEvent() != GUDPEndPoint.readyEvent.WAIT;
     }
 
-    private boolean allEndpointsClosed(LinkedList<GUDPEndPoint> queue) {
+    private boolean allEndpointsClosed(Collection<GUDPEndPoint> queue) {
         for (GUDPEndPoint endPoint : queue) {
             if (endPoint.getState() != GUDPEndPoint.endPointState.CLOSED)
                 return false;
@@ -236,7 +922,7 @@ public class GUDPSocket implements GUDPSocketAPI {
         return "" + getAddress() + ":" + getPort();
     }
 
-    private class SenderThread extends Thread {
+    private class SenderThread implements Runnable {
 
         public SenderThread() {
         }
@@ -244,264 +930,602 @@ public class GUDPSocket implements GUDPSocketAPI {
         public void run() {
             while (GUDPSocket.this.senderThreadRunning) {
 
-                synchronized (GUDPSocket.this.sendQueue) {
-                    while (GUDPSocket.this.senderThreadRunning && (GUDPSocket.this.sendQueue.size() == 0
-                            || !messagesInSocketQueue(GUDPSocket.this.sendQueue))) {
-                        try {
-                            System.out.println(">>Sender Thread waiting..." + GUDPSocket.this.senderThreadRunning);
-                            GUDPSocket.this.sendQueue.wait();
-                        } catch (Exception e) {
-                            Thread.currentThread().interrupt();
-                            System.err.println(">>Sender Thread interrupted " + e);
-                        }
-                    }
-
-                    for (GUDPEndPoint endPoint : GUDPSocket.this.sendQueue) {
-                        try {
-                            handleGUDPEndpoint(endPoint);
-                        } catch (Exception e) {
-                            System.err.println(">>Sender Thread: Error sending packet on enpoint"
-                                    + endPoint.getRemoteEndPoint() + ". error: " + e);
-                        }
+                // parked until wakeupSender() queues an endpoint
+                while (GUDPSocket.this.senderThreadRunning && GUDPSocket.this.readyEndPoints.isEmpty()) {
+                    System.out.println(">>Sender Thread waiting..." + GUDPSocket.this.senderThreadRunning);
+                    LockSupport.park(this);
+                    if (Thread.interrupted() && !GUDPSocket.this.senderThreadRunning) {
+                        System.err.println(">>Sender Thread interrupted");
+                        return;
                     }
                 }
+                handleSendQueue();
             }
         }
+    }
 
-        private void handleGUDPEndpoint(GUDPEndPoint endPoint) throws IOException {
-            GUDPEndPoint.endPointState state = endPoint.getState();
-            GUDPEndPoint.readyEvent event = endPoint.getEvent();
+    private class ReceiverThread implements Runnable {
+        private DatagramPacket udppacket = new DatagramPacket(new byte[0], 0);
+        private byte[] scratch = new byte[GUDPPacket.MAX_DATAGRAM_LEN];
 
-            if (event == GUDPEndPoint.readyEvent.WAIT || event == GUDPEndPoint.readyEvent.RECEIVE
-                    || state == GUDPEndPoint.endPointState.CLOSED)
-                return;
+        public ReceiverThread() {
+        }
 
-            System.out.println();
-            String debugOutput = "\n";
-            debugOutput += ">>Sender Thread handling endpoint " + endPoint.getRemoteEndPoint() + "\n  Socket: "
-                    + GUDPSocket.this;
-            debugOutput += "\n--Data of packets sent--\n";
+        private int soTimeout = 0;
 
-            InetSocketAddress endPointSocketAddress = endPoint.getRemoteEndPoint();
-
-            if (state == GUDPEndPoint.endPointState.MAXRETRIED) {
-                endPoint.removeAll();
-                endPoint.setState(GUDPEndPoint.endPointState.CLOSED);
-                throw new IOException("Endpoint " + endPointSocketAddress + " reached max retry.");
+        public void run() {
+            while (GUDPSocket.this.receiverThreadRunning) {
+                GUDPPacket receivedPacket;
+                try {
+                    // wait for a packet, or until the next delayed ACK is due
+                    int timeout = sendDelayedAcks();
+                    if (timeout != this.soTimeout) {
+                        GUDPSocket.this.datagramSocket.setSoTimeout(timeout);
+                        this.soTimeout = timeout;
+                    }
+                    System.out.println(">>Receiver Thread: " + GUDPSocket.this
+                            + " : waiting for packet...");
+                    receivedPacket = receivePacket();
+                    handleGUDPPacket(receivedPacket);
+                } catch (SocketTimeoutException e) {
+                    // a delayed ACK is due
+                } catch (Exception e) {
+                    System.err.println(">>Receiver Thread: error receiving packet on socket "
+                            + GUDPSocket.this);
+                }
             }
+        }
 
-            if (state == GUDPEndPoint.endPointState.FINISHED) {
-                if (endPoint.getBase() == endPoint.getLast()) {
-                    endPoint.setState(GUDPEndPoint.endPointState.CLOSED);
-                    endPoint.removeAll();
-                    endPoint.stopTimer();
-                    GUDPSocket.this.finishWaiting.notifyAll();
-                }
+        private GUDPPacket receivePacket() throws IOException {
+
+            GUDPPacket gudppacket = GUDPSocket.this.packetPool.acquire();
+            try {
+                gudppacket.receiveInto(udppacket, scratch);
+                GUDPSocket.this.datagramSocket.receive(udppacket);
+                gudppacket.unpack(udppacket, scratch);
+            } catch (IOException e) {
+                gudppacket.release();
+                throw e;
             }
 
-            if (event == GUDPEndPoint.readyEvent.INIT) {
-                int endPointBSN = endPoint.getBase();
+            return gudppacket;
+        }
+    }
 
-                GUDPPacket gudpPacket = endPoint.getPacket(endPointBSN);
-                if (gudpPacket != null) {
-                    DatagramPacket udpPacket = gudpPacket.pack();
+    private void handleGUDPEndpoint(GUDPEndPoint endPoint) throws IOException {
+        GUDPEndPoint.endPointState state = endPoint.getState();
+        GUDPEndPoint.readyEvent event = endPoint.getEvent();
 
-                    GUDPSocket.this.datagramSocket.send(udpPacket);
-                    debugOutput += GUDPSocket.bytesToHex(gudpPacket.getBytes()) + "\n";
+        if (event == GUDPEndPoint.readyEvent.WAIT || event == GUDPEndPoint.readyEvent.RECEIVE
+                || state == GUDPEndPoint.endPointState.CLOSED)
+            return;
 
-                    // GUDPPacket firstDataPacket = endPoint.remove();
-                    // endPoint.add(gudpPacket);
-                    // endPoint.add(firstDataPacket);
+        System.out.println();
+        StringBuilder debugOutput = new StringBuilder("\n");
+        debugOutput.append(">>Sender Thread handling endpoint ").append(endPoint.getRemoteEndPoint())
+                .append("\n  Socket: ").append(this);
+        debugOutput.append("\n--Data of packets sent--\n");
 
-                    endPoint.setNextseqnum(endPointBSN + 1);
+        InetSocketAddress endPointSocketAddress = endPoint.getRemoteEndPoint();
 
-                    endPoint.setState(GUDPEndPoint.endPointState.BSN);
-                    endPoint.setEvent(GUDPEndPoint.readyEvent.SEND);
+        if (state == GUDPEndPoint.endPointState.MAXRETRIED) {
+            endPoint.removeAll();
+            endPoint.setState(GUDPEndPoint.endPointState.CLOSED);
+            synchronized (this.finishWaiting) {
+                this.finishWaiting.notifyAll();
+            }
+            throw new IOException("Endpoint " + endPointSocketAddress + " reached max retry.");
+        }
 
-                    // FOR TESTING ONLY
-                    // endPoint.removeAll();
-                } else {
-                    debugOutput += "Could not find BSN packet\n";
+        if (state == GUDPEndPoint.endPointState.FINISHED) {
+            if (endPoint.getBase() == endPoint.getLast() + 1) {
+                endPoint.setState(GUDPEndPoint.endPointState.CLOSED);
+                endPoint.removeAll();
+                endPoint.stopTimer();
+                synchronized (this.finishWaiting) {
+                    this.finishWaiting.notifyAll();
                 }
+                return;
+            }
+        }
 
-            } else if (event == GUDPEndPoint.readyEvent.SEND) {
-                if (state == GUDPEndPoint.endPointState.BSN || state == GUDPEndPoint.endPointState.READY
-                        || state == GUDPEndPoint.endPointState.FINISHED) {
-                    int windowSize = endPoint.getWindowSize();
-                    int base = endPoint.getBase();
+        if (event == GUDPEndPoint.readyEvent.INIT) {
+            int endPointBSN = endPoint.getBase();
 
-                    for (int i = base; i < base + windowSize; i++) {
-                        int nextSeq = endPoint.getNextseqnum();
-                        if (i < nextSeq)
-                            continue;
+            GUDPPacket gudpPacket = endPoint.getPacket(endPointBSN);
+            if (gudpPacket != null) {
+                gudpPacket.setSentTime(System.nanoTime());
+                transmit(gudpPacket);
+                dumpPacket(debugOutput, gudpPacket);
 
-                        GUDPPacket packet = endPoint.getPacket(i);
-                        if (packet == null || packet.getSeqno() != nextSeq)
-                            continue;
+                // GUDPPacket firstDataPacket = endPoint.remove();
+                // endPoint.add(gudpPacket);
+                // endPoint.add(firstDataPacket);
 
-                        GUDPSocket.this.datagramSocket.send(packet.pack());
-                        debugOutput += GUDPSocket.bytesToHex(packet.getBytes()) + "\n";
+                endPoint.setNextseqnum(endPointBSN + 1);
 
-                        endPoint.setNextseqnum(nextSeq + 1);
-                    }
+                if (state == GUDPEndPoint.endPointState.INIT) // finish() may already have been called
+                    endPoint.setState(GUDPEndPoint.endPointState.BSN);
+                endPoint.setEvent(GUDPEndPoint.readyEvent.SEND);
 
-                    endPoint.startTimer();
-                    endPoint.setEvent(GUDPEndPoint.readyEvent.WAIT);
-                    // endPoint.removeAll();
+                // FOR TESTING ONLY
+                // endPoint.removeAll();
+            } else {
+                debugOutput.append("Could not find BSN packet\n");
+            }
 
-                }
-            } else if (event == GUDPEndPoint.readyEvent.TIMEOUT) {
+        } else if (event == GUDPEndPoint.readyEvent.SEND || event == GUDPEndPoint.readyEvent.RETRANSMIT) {
+            if (state == GUDPEndPoint.endPointState.BSN || state == GUDPEndPoint.endPointState.READY
+                    || state == GUDPEndPoint.endPointState.FINISHED) {
+                // before sending, so that an ACK arriving meanwhile sets SEND again
+                endPoint.setEvent(GUDPEndPoint.readyEvent.WAIT);
                 int windowSize = endPoint.getWindowSize();
                 int base = endPoint.getBase();
-                int retry = endPoint.getRetry();
-                int maxRetry = endPoint.getMaxRetry();
-
-                if (retry <= maxRetry) {
-                    for (int i = base; i < base + windowSize; i++) {
-                        GUDPPacket packet = endPoint.getPacket(i);
-                        if (packet == null)
-                            continue;
 
-                        GUDPSocket.this.datagramSocket.send(packet.pack());
-                        debugOutput += GUDPSocket.bytesToHex(packet.getBytes()) + "\n";
+                if (event == GUDPEndPoint.readyEvent.RETRANSMIT) {
+                    // fast retransmit: resend the hole at base with Selective
+                    // Repeat, go back to base with Go-Back-N (the receiver
+                    // dropped everything after the hole)
+                    if (this.selectiveRepeat) {
+                        GUDPPacket packet = endPoint.getPacket(base);
+                        if (packet != null) {
+                            packet.setRetransmitted(true);
+                            transmit(packet);
+                            dumpPacket(debugOutput, packet);
+                        }
+                    } else {
+                        for (int i = base; i - endPoint.getNextseqnum() < 0; i++) {
+                            GUDPPacket packet = endPoint.getPacket(i);
+                            if (packet != null)
+                                packet.setRetransmitted(true);
+                        }
+                        endPoint.setNextseqnum(base);
+                    }
+                }
 
+                // send from nextseqnum up to the end of the window, as one burst
+                long now = System.nanoTime();
+                for (int nextSeq = endPoint.getNextseqnum(); nextSeq - (base + windowSize) < 0; nextSeq++) {
+                    GUDPPacket packet = endPoint.getPacket(nextSeq);
+                    if (packet == null)
+                        break;
+                    if (this.selectiveRepeat && packet.isSacked()) {
+                        endPoint.setNextseqnum(nextSeq + 1); // already received, after a timeout
+                        continue;
                     }
 
-                    endPoint.setRetry(retry + 1);
+                    packet.setSentTime(now);
+                    transmit(packet);
+                    dumpPacket(debugOutput, packet);
+
+                    endPoint.setNextseqnum(nextSeq + 1);
+                }
+
+                // the timer runs for the oldest packet in flight: it is only
+                // restarted by an ACK (which stops it) or a retransmission
+                if (endPoint.getBase() != endPoint.getNextseqnum()
+                        && (event == GUDPEndPoint.readyEvent.RETRANSMIT || !endPoint.isTimerPending()))
                     endPoint.startTimer();
-                    endPoint.setEvent(GUDPEndPoint.readyEvent.WAIT);
-                } else {
-                    endPoint.setState(GUDPEndPoint.endPointState.MAXRETRIED);
+                // endPoint.removeAll();
+
+            }
+        } else if (event == GUDPEndPoint.readyEvent.TIMEOUT) {
+            int retry = endPoint.getRetry();
+            int maxRetry = endPoint.getMaxRetry();
+
+            if (retry <= maxRetry) {
+                endPoint.setEvent(GUDPEndPoint.readyEvent.WAIT);
+                if (endPoint.getReceiveWindow() > 0) // a zero window probe is not a loss
+                    endPoint.getCongestionControl().onTimeout();
+                endPoint.exitRecovery();
+                int windowSize = endPoint.getWindowSize();
+                int base = endPoint.getBase();
+                int nextSeq = endPoint.getNextseqnum();
+
+                // everything in flight is considered lost: go back to base, and
+                // resend (only the holes with Selective Repeat) as the
+                // congestion window opens again
+                for (int i = base; i - nextSeq < 0; i++) {
+                    GUDPPacket packet = endPoint.getPacket(i);
+                    if (packet != null)
+                        packet.setRetransmitted(true);
+                }
+                endPoint.setNextseqnum(base);
+
+                for (int i = base; i - (base + windowSize) < 0 && i - nextSeq < 0; i++) {
+                    GUDPPacket packet = endPoint.getPacket(i);
+                    if (packet == null)
+                        break;
+                    endPoint.setNextseqnum(i + 1);
+                    if (this.selectiveRepeat && packet.isSacked())
+                        continue; // Selective Repeat: only resend the holes
+
+                    transmit(packet);
+                    dumpPacket(debugOutput, packet);
                 }
 
+                endPoint.setRetry(retry + 1);
+                endPoint.backoffTimeout();
+                endPoint.startTimer();
+            } else {
+                endPoint.setState(GUDPEndPoint.endPointState.MAXRETRIED);
             }
-            debugOutput += "--Data of packets sent--\n";
-            debugOutput += "  Endpoint " + endPoint.getRemoteEndPoint() + " processed \n   state: " + state
-                    + "\n   Base: " + endPoint.getBase()
-                    + "\n   NextSeq: "
-                    + endPoint.getNextseqnum()
-                    + "\n   LastSeq: " + endPoint.getLast()
-                    + "\n   Retry: " + endPoint.getRetry()
-                    + "\n";
 
-            System.out.println(debugOutput);
         }
+        debugOutput.append("--Data of packets sent--\n");
+        debugOutput.append("  Endpoint " + endPoint.getRemoteEndPoint() + " processed \n   state: " + state
+                + "\n   Base: " + endPoint.getBase()
+                + "\n   NextSeq: "
+                + endPoint.getNextseqnum()
+                + "\n   LastSeq: " + endPoint.getLast()
+                + "\n   Retry: " + endPoint.getRetry()
+                + "\n   RTO: " + endPoint.getTimeoutDuration()
+                + "\n   Window: " + endPoint.getWindowSize()
+                + "\n   Rwnd: " + endPoint.getReceiveWindow()
+                + "\n");
+
+        System.out.println(debugOutput);
     }
 
-    private class ReceiverThread extends Thread {
-        public ReceiverThread() {
-        }
+    /*
+     * One line of the trace per packet sent, in debug mode only
+     */
+    private void dumpPacket(StringBuilder debugOutput, GUDPPacket packet) {
+        if (this.debug)
+            debugOutput.append(packetToHex(packet)).append('\n');
+    }
 
-        public void run() {
-            while (GUDPSocket.this.receiverThreadRunning) {
-                synchronized (GUDPSocket.this.receiveQueue) {
-
-                    GUDPPacket receivedPacket;
-                    try {
-                        System.out.println(">>Receiver Thread: " + GUDPSocket.this
-                                + " : waiting for packet...");
-                        receivedPacket = receivePacket();
-                        handleGUDPPacket(receivedPacket);
-                    } catch (Exception e) {
-                        System.err.println(">>Receiver Thread: error receiving packet on socket "
-                                + GUDPSocket.this);
-                    }
+    /*
+     * Header and payload of the packet in hex, not the rest of its buffer;
+     * only in debug mode
+     */
+    private String packetToHex(GUDPPacket packet) {
+        if (!this.debug)
+            return "(see setDebug)";
+        return bytesToHex(packet.getBytes(), GUDPPacket.HEADER_SIZE + packet.getPayloadLength());
+    }
 
+    /*
+     * Handle a packet from the network. Takes ownership of packet: it is
+     * released, or handed over to the endpoint, before anything that may
+     * throw, so the caller must not release it.
+     */
+    private void handleGUDPPacket(GUDPPacket packet) throws IOException {
+        short type = packet.getType();
+        int sequenceNumber = packet.getSeqno();
+        GUDPEndPoint packetEndPoint;
+
+        System.out.println(">>Receiver thread received packet on " + this + "\n  packet type: " + type
+                + "\n  seqno: " + sequenceNumber
+                + "\n  content " + packetToHex(packet));
+        if (type == GUDPPacket.TYPE_BSN) {
+            packetEndPoint = getReceiveEndPoint(packet.getSocketAddress());
+
+            // a retransmitted BSN (the same seqno as the session's) is just
+            // ACKed again, any other BSN starts a new session: BSNs are random,
+            // so a new sender on the same address may have any value
+            if (packetEndPoint.getState() == GUDPEndPoint.endPointState.INIT
+                    || sequenceNumber != packetEndPoint.getSessionBsn()) {
+                packetEndPoint.setSessionBsn(sequenceNumber);
+                packetEndPoint.clearOutOfOrder();
+                packetEndPoint.setExpectedseqnum(sequenceNumber + 1);
+                packetEndPoint.setState(GUDPEndPoint.endPointState.READY);
+                if (packet.getPayloadLength() > 0) {
+                    // the peer's first DATA packet, see setPiggybackBsn()
+                    packet.setType(GUDPPacket.TYPE_DATA);
+                    deliverInOrder(packetEndPoint, packet);
+                    sendAck(packetEndPoint);
+                    return;
                 }
             }
-        }
+            packet.release();
+            sendAck(packetEndPoint);
+        } else if (type == GUDPPacket.TYPE_DATA || type == GUDPPacket.TYPE_FIN) {
+            packetEndPoint = getReceiveEndPoint(packet.getSocketAddress());
 
-        private GUDPPacket receivePacket() throws IOException {
+            if (packetEndPoint.getState() == GUDPEndPoint.endPointState.INIT) {
+                packet.release(); // no BSN yet: nothing to ACK against
+                return;
+            }
+            if (handleSequencedPacket(packetEndPoint, packet))
+                delayAck(packetEndPoint);
+            else
+                sendAck(packetEndPoint);
+            return;
+        } else if (type == GUDPPacket.TYPE_ACK) {
+            packetEndPoint = this.sendQueue.get(packet.getSocketAddress());
+            if (packetEndPoint == null) {
+                packet.release(); // nothing sent to this peer
+                return;
+            }
 
-            byte[] buf = new byte[GUDPPacket.MAX_DATAGRAM_LEN];
-            DatagramPacket udppacket = new DatagramPacket(buf, buf.length);
-            GUDPSocket.this.datagramSocket.receive(udppacket);
-            GUDPPacket gudppacket = GUDPPacket.unpack(udppacket);
+            System.out.println("UPDATING ENDPOINT " + packetEndPoint.getRemoteEndPoint());
 
-            return gudppacket;
+            long sack = packet.getSack();
+            int rwnd = packet.getRwnd();
+            packet.release();
+            packetEndPoint.getSendLock().lock();
+            try {
+                updateEndpointOnACK(packetEndPoint, sequenceNumber, sack, rwnd);
+            } finally {
+                packetEndPoint.getSendLock().unlock();
+            }
+            if (hasSenderEvent(packetEndPoint))
+                wakeupSender(packetEndPoint);
+        } else {
+            packet.release();
         }
+    }
 
-        private void handleGUDPPacket(GUDPPacket packet) throws IOException {
-            short type = packet.getType();
-            int sequenceNumber = packet.getSeqno();
-            GUDPEndPoint packetEndPoint = GUDPSocket.this.getPacketEndPoint(packet);
-            int endPointIndex = getEndpointReceiveQueueIndex(packetEndPoint);
-
-            System.out.println(">>Receiver thread received packet on " + GUDPSocket.this + "\n  packet type: " + type
-                    + "\n  seqno: " + sequenceNumber
-                    + "\n  content " + bytesToHex(packet.getBytes()));
-            if (type == GUDPPacket.TYPE_BSN) {
-                packetEndPoint = GUDPSocket.this.receiveQueue.get(endPointIndex);
+    /*
+     * Receive side of DATA and FIN: deliver in order, and with Selective Repeat
+     * keep packets that arrive after a gap until the gap is filled. Go-Back-N
+     * drops them, and so does a full receive buffer. Takes ownership of packet.
+     * Returns true if the ACK may be delayed: an in-order DATA packet that
+     * did not fill a gap.
+     */
+    private boolean handleSequencedPacket(GUDPEndPoint endPoint, GUDPPacket packet) {
+        int offset = packet.getSeqno() - endPoint.getExpectedseqnum();
+
+        if (offset != 0) {
+            if (offset < 0 || !this.selectiveRepeat || !endPoint.bufferOutOfOrder(packet))
+                packet.release(); // duplicate, or out of order
+            return false;
+        }
+        if (packet.getType() == GUDPPacket.TYPE_DATA && endPoint.getFreeWindow() == 0) {
+            packet.release(); // beyond the advertised window
+            return false;
+        }
 
-                packetEndPoint.setExpectedseqnum(sequenceNumber);
-                sendAck(packetEndPoint);
-            } else if (type == GUDPPacket.TYPE_DATA) {
-                packetEndPoint = GUDPSocket.this.receiveQueue.get(endPointIndex);
+        boolean delayable = packet.getType() == GUDPPacket.TYPE_DATA;
+        deliverInOrder(endPoint, packet);
+        GUDPPacket next;
+        while ((next = endPoint.takeOutOfOrder(endPoint.getExpectedseqnum())) != null) {
+            deliverInOrder(endPoint, next);
+            delayable = false;
+        }
+        return delayable;
+    }
 
-                packetEndPoint.setExpectedseqnum(sequenceNumber);
-                sendAck(packetEndPoint);
+    private void deliverInOrder(GUDPEndPoint endPoint, GUDPPacket packet) {
+        endPoint.setExpectedseqnum(packet.getSeqno() + 1);
+        if (packet.getType() != GUDPPacket.TYPE_DATA) {
+            packet.release();
+            return;
+        }
+        // DATA packets stay buffered until delivered by receive(), which is
+        // woken up: one receive() for any peer and one for this peer
+        this.receiveLock.lock();
+        try {
+            endPoint.add(packet);
+            if (!endPoint.isReadable()) {
+                endPoint.setReadable(true);
+                this.readableEndPoints.add(endPoint);
+            }
+            this.dataAvailable.signal();
+            endPoint.getReceiveCondition().signal();
+        } finally {
+            this.receiveLock.unlock();
+        }
+    }
 
-                packetEndPoint.add(packet);
-                GUDPSocket.this.receiveQueue.notifyAll();
-            } else if (type == GUDPPacket.TYPE_ACK) {
-                endPointIndex = GUDPSocket.this.getEnpointSendQueueIndex(packetEndPoint);
-                packetEndPoint = GUDPSocket.this.sendQueue.get(endPointIndex);
+    /*
+     * Receive endpoint of a remote address, created in INIT state on first use
+     */
+    private GUDPEndPoint getReceiveEndPoint(InetSocketAddress address) {
+        GUDPEndPoint endPoint = this.receiveQueue.get(address);
+        if (endPoint != null)
+            return endPoint;
+        return this.receiveQueue.computeIfAbsent(address, this::createReceiveEndPoint);
+    }
 
-                System.out.println("UPDATING ENDPOINT " + packetEndPoint.getRemoteEndPoint());
+    private GUDPEndPoint createReceiveEndPoint(InetSocketAddress address) {
+        GUDPEndPoint endPoint = new GUDPEndPoint(address.getAddress(), address.getPort());
+        endPoint.setState(GUDPEndPoint.endPointState.INIT); // READY once the BSN is received
+        endPoint.setReceiveBufferSize(this.receiveBufferSize);
+        endPoint.setTimerWheel(this.timerWheel); // delayed ACKs
+        endPoint.setEvent(GUDPEndPoint.readyEvent.RECEIVE);
+        endPoint.setReceiveCondition(this.receiveLock.newCondition());
+        return endPoint;
+    }
 
-                updateEndpointOnACK(packetEndPoint, sequenceNumber);
-            } else if (type == GUDPPacket.TYPE_FIN) {
-                packetEndPoint = GUDPSocket.this.receiveQueue.get(endPointIndex);
+    /*
+     * Cumulative ACK of everything below expectedseqnum with the free receive
+     * window, and the SACK bitmap of out-of-order packets in Selective Repeat
+     * mode
+     */
+    private void sendAck(GUDPEndPoint endPoint) throws IOException {
+        int expectedSequenceNum = endPoint.getExpectedseqnum();
+        InetSocketAddress endPointSocketAddress = endPoint.getRemoteEndPoint();
+
+        GUDPPacket gudpPacket = GUDPPacket.control(this.packetPool, GUDPPacket.TYPE_ACK, expectedSequenceNum,
+                endPointSocketAddress);
+        int window = endPoint.getFreeWindow();
+        gudpPacket.setRwnd(window);
+        endPoint.setAdvertisedWindow(window);
+        if (this.selectiveRepeat)
+            gudpPacket.setSack(endPoint.getSackBitmap());
+        endPoint.ackSent();
+
+        transmit(gudpPacket);
+        System.out.println(">>Receiver thread sent ACK: \n  Socket: " + this + "\n  endpoint: "
+                + endPoint.getRemoteEndPoint() + "\n  content: "
+                + packetToHex(gudpPacket) + "\n  seqno: " + gudpPacket.getSeqno());
+        gudpPacket.release();
+    }
 
-                packetEndPoint.setExpectedseqnum(sequenceNumber);
-                sendAck(packetEndPoint);
+    /*
+     * ACK an in-order packet now if ackFrequency packets are waiting,
+     * otherwise at the latest ackDelay from now. The ACK is sent by the
+     * thread that handles the receive side: in non-blocking mode a timer on
+     * the socket's wheel, which runs on the event loop thread; in thread
+     * mode the receiver thread itself, which stops waiting for packets when
+     * the ACK is due. The shared timer thread never sends, so a busy socket
+     * cannot hold up the timers of the others.
+     */
+    private void delayAck(GUDPEndPoint endPoint) throws IOException {
+        if (endPoint.packetToAck() >= this.ackFrequency || this.ackDelay == 0) {
+            sendAck(endPoint);
+            return;
+        }
+        if (this.eventLoop == null) {
+            if (!endPoint.isAckQueued()) {
+                endPoint.setAckQueued(true, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.ackDelay));
+                this.delayedAcks.add(endPoint);
             }
+            return;
         }
+        endPoint.startAckTimer(() -> {
+            try {
+                if (endPoint.hasPacketsToAck())
+                    sendAck(endPoint);
+            } catch (IOException e) {
+                System.err.println(">>Receiver: error sending delayed ACK to " + endPoint.getRemoteEndPoint() + " " + e);
+            }
+        }, this.ackDelay);
+    }
 
-        private int getEndpointReceiveQueueIndex(GUDPEndPoint endPoint) {
-            synchronized (GUDPSocket.this.receiveQueue) {
-                for (GUDPEndPoint queuedEndPoint : GUDPSocket.this.receiveQueue) {
-                    if (endPoint.getRemoteEndPoint().getAddress() == queuedEndPoint.getRemoteEndPoint().getAddress()
-                            && endPoint.getRemoteEndPoint().getPort() == queuedEndPoint.getRemoteEndPoint().getPort()) {
-                        return GUDPSocket.this.receiveQueue.indexOf(queuedEndPoint);
-                    }
-                }
-                endPoint.setState(GUDPEndPoint.endPointState.READY);
-                endPoint.setEvent(GUDPEndPoint.readyEvent.RECEIVE);
-                GUDPSocket.this.receiveQueue.add(endPoint);
-                return GUDPSocket.this.receiveQueue.indexOf(endPoint);
+    /*
+     * Thread mode, receiver thread: send the delayed ACKs that are due.
+     * Returns the milliseconds until the next one, 0 if none is waiting.
+     */
+    private int sendDelayedAcks() {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        Iterator<GUDPEndPoint> iterator = this.delayedAcks.iterator();
+        while (iterator.hasNext()) {
+            GUDPEndPoint endPoint = iterator.next();
+            long wait = endPoint.getAckDeadline() - now;
+            if (endPoint.hasPacketsToAck() && wait > 0) {
+                next = Math.min(next, wait);
+                continue;
+            }
+            iterator.remove();
+            endPoint.setAckQueued(false, 0L);
+            if (!endPoint.hasPacketsToAck())
+                continue; // ACKed meanwhile
+            try {
+                sendAck(endPoint);
+            } catch (IOException e) {
+                System.err.println(">>Receiver: error sending delayed ACK to " + endPoint.getRemoteEndPoint() + " " + e);
             }
         }
+        if (next == Long.MAX_VALUE)
+            return 0;
+        return (int) Math.max(1L, TimeUnit.NANOSECONDS.toMillis(next + 999999L)); // rounded up
+    }
 
-        private void sendAck(GUDPEndPoint endPoint) throws IOException {
-            int expectedSequenceNum = endPoint.getExpectedseqnum();
-            InetSocketAddress endPointSocketAddress = endPoint.getRemoteEndPoint();
-            byte[] buffer = new byte[0];
-
-            DatagramPacket ACKPacket = new DatagramPacket(buffer, 0, endPointSocketAddress);
-
-            GUDPPacket gudpPacket = GUDPPacket.encapsulate(ACKPacket);
-
-            gudpPacket.setType(GUDPPacket.TYPE_ACK);
-            gudpPacket.setSeqno(expectedSequenceNum + 1);
-
-            endPoint.setExpectedseqnum(expectedSequenceNum + 1);
+    /*
+     * Window update: once the application has read enough to reopen a window
+     * that was advertised small or closed, tell the sender without waiting
+     * for its next packet (receiver side silly window avoidance: only when
+     * the window grows by half the buffer)
+     */
+    private void sendWindowUpdate(GUDPEndPoint endPoint) throws IOException {
+        int window = endPoint.getFreeWindow();
+        if (window - endPoint.getAdvertisedWindow() < Math.max(1, endPoint.getReceiveBufferSize() / 2))
+            return;
+        endPoint.setAdvertisedWindow(window);
+        if (this.eventLoop == null) {
+            sendAck(endPoint);
+            return;
+        }
+        this.eventLoop.execute(() -> {
+            try {
+                sendAck(endPoint);
+            } catch (IOException e) {
+                System.err.println(">>Event loop: error sending window update to " + endPoint.getRemoteEndPoint()
+                        + " " + e);
+            }
+        });
+    }
 
-            DatagramPacket udpPacket = gudpPacket.pack();
+    private void updateEndpointOnACK(GUDPEndPoint endPoint, int ACK, long sack, int rwnd) {
+        for (int i = 0; sack != 0L && i < GUDPPacket.SACK_RANGE; i++) {
+            if ((sack & (1L << i)) == 0L)
+                continue;
+            GUDPPacket sackedPacket = endPoint.getPacket(ACK + 1 + i);
+            if (sackedPacket != null)
+                sackedPacket.setSacked(true);
+        }
+        boolean windowUpdate = false; // the ACK opens a window the sender was blocked on
+        if (rwnd >= 0 && ACK - endPoint.getBase() >= 0) {
+            int previous = endPoint.getReceiveWindow();
+            windowUpdate = rwnd > previous && endPoint.getNextseqnum() - endPoint.getBase() >= previous;
+            updateReceiveWindow(endPoint, ACK, rwnd);
+        }
 
-            GUDPSocket.this.datagramSocket.send(udpPacket);
-            System.out.println(">>Receiver thread sent ACK: \n  Socket: " + GUDPSocket.this + "\n  endpoint: "
-                    + endPoint.getRemoteEndPoint() + "\n  content: "
-                    + GUDPSocket.bytesToHex(gudpPacket.getBytes()) + "\n  seqno: " + gudpPacket.getSeqno());
+        GUDPPacket ackedPacket = endPoint.getPacket(ACK - 1);
+        if (ackedPacket == null) {
+            if (ACK == endPoint.getBase() && !windowUpdate)
+                onDuplicateAck(endPoint);
+            return;
+        }
+        if (ackedPacket.getType() == GUDPPacket.TYPE_BSN && endPoint.getState() == GUDPEndPoint.endPointState.BSN)
+            endPoint.setState(GUDPEndPoint.endPointState.READY);
+
+        endPoint.getCongestionControl().onAck(ACK - endPoint.getBase(), endPoint.getSrtt());
+
+        // Karn's rule: no RTT sample when the ACK covers a retransmitted packet
+        long sentTime = ackedPacket.getSentTime();
+        if (!endPoint.removeAllACK(ACK - 1))
+            endPoint.updateRtt(System.nanoTime() - sentTime);
+        else
+            endPoint.resetBackoff();
+        endPoint.setBase(ACK);
+        if (endPoint.getNextseqnum() - ACK < 0)
+            endPoint.setNextseqnum(ACK); // ACKed past a window rewound after a timeout
+        endPoint.setRetry(0);
+        endPoint.stopTimer();
+        endPoint.resetDuplicateAcks();
+        endPoint.setEvent(GUDPEndPoint.readyEvent.SEND);
+
+        if (endPoint.isInRecovery()) {
+            if (ACK - endPoint.getRecoveryPoint() >= 0)
+                endPoint.exitRecovery();
+            else if (this.selectiveRepeat)
+                endPoint.setEvent(GUDPEndPoint.readyEvent.RETRANSMIT); // partial ACK: next hole
         }
+    }
 
-        private void updateEndpointOnACK(GUDPEndPoint endPoint, int ACK) {
-            if (endPoint.getPacket(ACK - 1).getType() == GUDPPacket.TYPE_BSN)
-                endPoint.setState(GUDPEndPoint.endPointState.READY);
+    /*
+     * Duplicate ACK of base while packets are in flight: after dupAckThreshold
+     * of them the packet at base is taken as lost. Congestion control reacts
+     * once per window of data (NewReno recovery).
+     */
+    private void onDuplicateAck(GUDPEndPoint endPoint) {
+        if (this.dupAckThreshold == 0 || endPoint.getNextseqnum() == endPoint.getBase()
+                || endPoint.getReceiveWindow() == 0) // zero window probe, not a loss
+            return;
+        if (endPoint.duplicateAck() != this.dupAckThreshold || endPoint.isInRecovery())
+            return;
+        System.out.println("FAST RETRANSMIT: " + endPoint.getRemoteEndPoint() + " seqno " + endPoint.getBase());
+        endPoint.enterRecovery(endPoint.getNextseqnum());
+        endPoint.getCongestionControl().onLoss();
+        endPoint.setEvent(GUDPEndPoint.readyEvent.RETRANSMIT);
+    }
 
-            endPoint.removeAllACK(ACK - 1);
-            endPoint.setBase(ACK);
-            endPoint.stopTimer();
+    /*
+     * Take the window advertised by an ACK that is not older than base
+     */
+    private void updateReceiveWindow(GUDPEndPoint endPoint, int ACK, int rwnd) {
+        int previous = endPoint.getReceiveWindow();
+        endPoint.setReceiveWindow(rwnd);
+        if (rwnd == 0)
+            endPoint.setRetry(0); // the receiver is alive, only slow: keep probing
+
+        if (ACK == endPoint.getBase() && rwnd > previous) {
+            // window update: whatever was sent past the old window was dropped
+            int edge = ACK + previous;
+            int nextSeq = endPoint.getNextseqnum();
+            for (int i = edge; i - nextSeq < 0; i++) {
+                GUDPPacket packet = endPoint.getPacket(i);
+                if (packet != null)
+                    packet.setRetransmitted(true);
+            }
+            if (nextSeq - edge > 0)
+                endPoint.setNextseqnum(edge);
+            endPoint.resetBackoff();
             endPoint.setEvent(GUDPEndPoint.readyEvent.SEND);
         }
     }
@@ -511,8 +1535,15 @@ public class GUDPSocket implements GUDPSocketAPI {
     private static final byte[] HEX_ARRAY = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
 
     public static String bytesToHex(byte[] bytes) {
-        byte[] hexChars = new byte[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
+        return bytesToHex(bytes, bytes.length);
+    }
+
+    /*
+     * The first length bytes only
+     */
+    public static String bytesToHex(byte[] bytes, int length) {
+        byte[] hexChars = new byte[length * 2];
+        for (int j = 0; j < length; j++) {
             int v = bytes[j] & 0xFF;
             hexChars[j * 2] = HEX_ARRAY[v >>> 4];
             hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
@@ -1,10 +1,13 @@
 import java.net.DatagramPacket;
+import java.util.List;
 import java.io.IOException;
 
 public interface GUDPSocketAPI {
 
     public void send(DatagramPacket packet) throws IOException;
+    public void send(List<DatagramPacket> packets) throws IOException;
     public void receive(DatagramPacket packet) throws IOException;
+    public int receive(DatagramPacket[] packets) throws IOException;
     public void finish() throws IOException;
     public void close() throws IOException;
 }
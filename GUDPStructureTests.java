@@ -0,0 +1,232 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Stress and boundary checks for the data structures under GUDPEndPoint:
+ * the lock-free send queue, the packet pool, the timer wheel and the ring
+ * buffer. Needs no network. Exits with status 1 if any check fails.
+ */
+public class GUDPStructureTests {
+    private static int failures = 0;
+
+    public static void main(String args[]) throws InterruptedException {
+        testMpscQueue(4, 100000, 16);
+        testPacketPool(8, 200000, 64);
+        testTimerWheel();
+        testRingBufferWrap(Integer.MAX_VALUE - 2);
+        testRingBufferWrap(-3);
+
+        if (failures > 0) {
+            System.out.println("TESTS: " + failures + " check(s) FAILED");
+            System.exit(1);
+        }
+        System.out.println("TESTS: all passed");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            failures++;
+            System.out.println(">>FAIL: " + what);
+        }
+    }
+
+    private static GUDPPacket packet(short producer, int seqno) {
+        GUDPPacket packet = new GUDPPacket(ByteBuffer.allocate(GUDPPacket.HEADER_SIZE));
+        packet.setType(producer);
+        packet.setSeqno(seqno);
+        return packet;
+    }
+
+    /*
+     * Several producers mix single and batch offers into a small queue while
+     * one consumer polls. Every packet must arrive exactly once, and in order
+     * for each producer.
+     */
+    private static void testMpscQueue(int producers, int perProducer, int capacity) throws InterruptedException {
+        GUDPMpscQueue queue = new GUDPMpscQueue(capacity);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            short id = (short) p;
+            threads[p] = new Thread(() -> {
+                Random random = new Random(id);
+                int next = 0;
+                while (next < perProducer) {
+                    if (random.nextInt(3) == 0) {
+                        GUDPPacket packet = packet(id, next++);
+                        while (!queue.offer(packet))
+                            Thread.yield();
+                    } else {
+                        int count = Math.min(1 + random.nextInt(2 * capacity), perProducer - next);
+                        GUDPPacket[] batch = new GUDPPacket[count];
+                        for (int i = 0; i < count; i++)
+                            batch[i] = packet(id, next++);
+                        int queued = 0;
+                        while (queued < count) {
+                            int n = queue.offer(batch, queued, count - queued);
+                            if (n == 0)
+                                Thread.yield();
+                            queued += n;
+                        }
+                    }
+                }
+            }, "Producer " + p);
+            threads[p].start();
+        }
+
+        int[] expected = new int[producers];
+        long total = (long) producers * perProducer;
+        long received = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        boolean ordered = true;
+        while (received < total && System.nanoTime() < deadline) {
+            GUDPPacket packet = queue.poll();
+            if (packet == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = packet.getType();
+            if (packet.getSeqno() != expected[producer]) {
+                if (ordered)
+                    System.out.println(">>MPSC: producer " + producer + " expected " + expected[producer]
+                            + " got " + packet.getSeqno());
+                ordered = false;
+            }
+            expected[producer] = packet.getSeqno() + 1;
+            received++;
+        }
+        for (Thread thread : threads)
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+
+        check(received == total, "MPSC queue: received " + received + " of " + total);
+        check(ordered, "MPSC queue: packets lost, duplicated or reordered");
+        check(queue.poll() == null, "MPSC queue: not empty after all packets were received");
+        System.out.println("MPSC queue: " + producers + " producers, " + received + " packets");
+    }
+
+    /*
+     * Threads acquire and release packets at random. No packet may be handed
+     * out twice while it is held.
+     */
+    private static void testPacketPool(int threads, int operations, int capacity) throws InterruptedException {
+        GUDPPacketPool pool = new GUDPPacketPool(capacity, false);
+        Set<GUDPPacket> inUse = ConcurrentHashMap.newKeySet();
+        AtomicBoolean duplicate = new AtomicBoolean(false);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            workers[t] = new Thread(() -> {
+                ArrayDeque<GUDPPacket> held = new ArrayDeque<>();
+                Random random = new Random(seed);
+                for (int i = 0; i < operations; i++) {
+                    if (held.isEmpty() || (held.size() < 2 * capacity / threads + 8 && random.nextBoolean())) {
+                        GUDPPacket packet = pool.acquire();
+                        if (!inUse.add(packet))
+                            duplicate.set(true);
+                        held.add(packet);
+                    } else {
+                        GUDPPacket packet = held.poll();
+                        inUse.remove(packet);
+                        packet.release();
+                    }
+                }
+                for (GUDPPacket packet : held) {
+                    inUse.remove(packet);
+                    packet.release();
+                }
+            }, "Pool worker " + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        check(!duplicate.get(), "Packet pool: a packet was handed out twice");
+        check(pool.available() <= capacity, "Packet pool: " + pool.available() + " free packets in a pool of " + capacity);
+        System.out.println("Packet pool: " + threads + " threads, " + pool.available() + " free packets");
+    }
+
+    /*
+     * Drive a small wheel (8 buckets of 10 ms) with a simulated clock, one
+     * millisecond at a time, and record when each timeout fires. A timeout
+     * must fire at the first tick boundary at or after its deadline, not
+     * before, and not a revolution late.
+     */
+    private static void testTimerWheel() {
+        final long tick = 10;
+        GUDPTimerWheel wheel = new GUDPTimerWheel(tick, 8, 0);
+        String[] names = { "delay 0", "delay 1", "one revolution", "one revolution + 1 tick",
+                "three revolutions + 1 tick", "cancelled", "one revolution from tick 10",
+                "scheduled behind the wheel", "after idle ticks" };
+        long[] expected = { 0, 10, 80, 90, 250, -1, 180, 190, 1010 };
+        long[] fired = new long[names.length];
+        Arrays.fill(fired, -1);
+        long[] clock = { 0 };
+
+        wheel.schedule(() -> fired[0] = clock[0], 0, 0);
+        wheel.schedule(() -> fired[1] = clock[0], 1, 0);
+        wheel.schedule(() -> fired[2] = clock[0], 8 * tick, 0);
+        wheel.schedule(() -> fired[3] = clock[0], 9 * tick, 0);
+        wheel.schedule(() -> fired[4] = clock[0], 25 * tick, 0);
+        GUDPTimerWheel.Timeout cancelled = wheel.schedule(() -> fired[5] = clock[0], 3 * tick, 0);
+        check(cancelled.cancel(), "Timer wheel: cancel of a pending timeout failed");
+        check(!cancelled.cancel(), "Timer wheel: second cancel succeeded");
+
+        for (clock[0] = 0; clock[0] <= 1100; clock[0]++) {
+            wheel.advance(clock[0]);
+            if (clock[0] == 100)
+                wheel.schedule(() -> fired[6] = clock[0], 8 * tick, 100);
+            if (clock[0] == 185)
+                wheel.schedule(() -> fired[7] = clock[0], 0, 50); // deadline already passed
+            if (clock[0] == 1000) {
+                check(!wheel.hasPending(), "Timer wheel: timeouts still pending after the last expiry");
+                wheel.schedule(() -> fired[8] = clock[0], tick, 1000);
+            }
+        }
+
+        for (int i = 0; i < names.length; i++)
+            check(fired[i] == expected[i], "Timer wheel: " + names[i] + " fired at " + fired[i]
+                    + ", expected " + expected[i]);
+        check(!wheel.hasPending(), "Timer wheel: timeouts still pending at the end");
+        check(!cancelled.isPending(), "Timer wheel: cancelled timeout still pending");
+        System.out.println("Timer wheel: " + names.length + " timeouts checked");
+    }
+
+    /*
+     * Fill a ring buffer with sequence numbers that wrap around at base + 3,
+     * with the head slot wrapped too, then make it grow while wrapped.
+     * Lookups and removals must follow sequence order across both wraps.
+     */
+    private static void testRingBufferWrap(int base) {
+        GUDPRingBuffer buffer = new GUDPRingBuffer(4);
+        for (int i = 0; i < 3; i++)
+            buffer.add(packet((short) 0, base + i));
+        buffer.remove();
+        buffer.remove(); // head is now at slot 2
+        for (int i = 3; i < 6; i++)
+            buffer.add(packet((short) 0, base + i)); // fills slots 3, 0, 1
+        check(buffer.size() == 4, "Ring buffer " + base + ": size " + buffer.size() + ", expected 4");
+        for (int i = 2; i < 6; i++)
+            check(buffer.get(base + i) != null && buffer.get(base + i).getSeqno() == base + i,
+                    "Ring buffer " + base + ": get(" + (base + i) + ") before grow");
+
+        for (int i = 6; i < 10; i++)
+            buffer.add(packet((short) 0, base + i)); // grows while wrapped
+        check(buffer.size() == 8, "Ring buffer " + base + ": size " + buffer.size() + ", expected 8");
+        for (int i = 2; i < 10; i++)
+            check(buffer.get(base + i) != null && buffer.get(base + i).getSeqno() == base + i,
+                    "Ring buffer " + base + ": get(" + (base + i) + ") after grow");
+        check(buffer.get(base + 1) == null, "Ring buffer " + base + ": removed packet still found");
+        check(buffer.get(base + 10) == null, "Ring buffer " + base + ": packet found past the tail");
+        check(buffer.get(base + 2 + Integer.MIN_VALUE) == null, "Ring buffer " + base + ": packet found half the seqno space away");
+
+        for (int i = 2; i < 10; i++)
+            check(buffer.remove().getSeqno() == base + i, "Ring buffer " + base + ": remove out of order at " + (base + i));
+        check(buffer.isEmpty() && buffer.get(base + 9) == null, "Ring buffer " + base + ": not empty after removing all");
+        System.out.println("Ring buffer: wrap at " + base + " checked");
+    }
+}
@@ -0,0 +1,51 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Thread factories for the sender and receiver loops of a GUDPSocket in
+ * thread mode.
+ *
+ * Virtual threads make a socket cost a few kilobytes of heap instead of two
+ * native threads, so one JVM can hold tens of thousands of sockets. They are
+ * looked up at run time (Thread.ofVirtual(), Java 21), and the platform
+ * factory is used instead on older runtimes.
+ */
+class GUDPThreads {
+    private static ThreadFactory virtualFactory;
+    private static boolean virtualChecked = false;
+
+    /*
+     * One platform thread per loop, as a plain new Thread() would
+     */
+    public static ThreadFactory platform() {
+        return Thread::new;
+    }
+
+    /*
+     * Virtual threads if the runtime has them, platform threads otherwise
+     */
+    public static synchronized ThreadFactory virtual() {
+        if (!virtualChecked) {
+            virtualChecked = true;
+            virtualFactory = lookupVirtual();
+            if (virtualFactory == null)
+                System.err.println(">>GUDP: virtual threads not available on this runtime, using platform threads");
+        }
+        return virtualFactory != null ? virtualFactory : platform();
+    }
+
+    /*
+     * Thread.ofVirtual().name("GUDP-virtual-", 0).factory(), or null
+     */
+    private static ThreadFactory lookupVirtual() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "GUDP-virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null; // before Java 21, or preview features disabled
+        }
+    }
+}
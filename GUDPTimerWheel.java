@@ -0,0 +1,221 @@
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Hashed timer wheel shared by the GUDP endpoints for their retransmission
+ * timers. Scheduling and cancelling a timeout are O(1): a timeout is linked
+ * into the bucket of the tick at which it expires, and the wheel walks one
+ * bucket per tick. Timeouts further away than one revolution of the wheel
+ * keep a count of remaining rounds.
+ *
+ * The wheel either runs on its own daemon thread (start()), or is driven by
+ * an event loop calling advance() with the current time from now(). Time is
+ * taken from System.nanoTime(), not the wall clock, so that stepping the
+ * clock back cannot freeze every timer of every socket.
+ */
+class GUDPTimerWheel {
+    public static final long DEFAULT_TICK_DURATION = 10L; // (10 ms)
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static GUDPTimerWheel defaultWheel;
+
+    /*
+     * A scheduled timeout, linked into its bucket
+     */
+    class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int bucket;
+        private Timeout prev;
+        private Timeout next;
+        private boolean pending = true;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /*
+         * Cancel the timeout. Returns false if it already expired or was cancelled.
+         */
+        public boolean cancel() {
+            synchronized (GUDPTimerWheel.this) {
+                if (!pending)
+                    return false;
+                unlink(this);
+                return true;
+            }
+        }
+
+        public boolean isPending() {
+            synchronized (GUDPTimerWheel.this) {
+                return pending;
+            }
+        }
+    }
+
+    private final long tickDuration;
+    private final Timeout[] buckets;
+    private final int mask;
+    private long startTime;
+    private long tick = 0; // next tick to process
+    private int pendingCount = 0; // number of scheduled timeouts
+    private Thread workerThread;
+    private volatile boolean running = false;
+
+    public GUDPTimerWheel() {
+        this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    public GUDPTimerWheel(long tickDuration, int wheelSize) {
+        this(tickDuration, wheelSize, now());
+    }
+
+    /*
+     * Wheel whose tick 0 starts at startTime, for driving it with a
+     * simulated clock (see GUDPStructureTests)
+     */
+    GUDPTimerWheel(long tickDuration, int wheelSize, long startTime) {
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.tickDuration = tickDuration;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.startTime = startTime;
+    }
+
+    /*
+     * Current time in milliseconds, on the monotonic clock the wheel uses.
+     * Only differences between two values are meaningful.
+     */
+    public static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /*
+     * Wheel shared by all sockets, started on first use
+     */
+    public static synchronized GUDPTimerWheel getDefault() {
+        if (defaultWheel == null) {
+            defaultWheel = new GUDPTimerWheel();
+            defaultWheel.start();
+        }
+        return defaultWheel;
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /*
+     * Schedule task to run once, delay milliseconds from now
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        return schedule(task, delay, now());
+    }
+
+    /*
+     * Schedule task to run once, delay milliseconds after the given time
+     */
+    Timeout schedule(Runnable task, long delay, long now) {
+        Timeout timeout = new Timeout(task);
+        synchronized (this) {
+            long elapsed = (now - startTime) / tickDuration;
+            long deadline = Math.max(elapsed + (delay + tickDuration - 1) / tickDuration, tick);
+            long ticks = deadline - tick;
+            timeout.rounds = ticks / buckets.length;
+            timeout.bucket = (int) (deadline & mask);
+
+            Timeout first = buckets[timeout.bucket];
+            timeout.next = first;
+            if (first != null)
+                first.prev = timeout;
+            buckets[timeout.bucket] = timeout;
+            pendingCount++;
+        }
+        return timeout;
+    }
+
+    /*
+     * Process all ticks up to the given time, from now(), and run the expired
+     * tasks. Tasks run on the calling thread, outside the wheel lock.
+     */
+    public void advance(long now) {
+        ArrayList<Timeout> expired = new ArrayList<>();
+        synchronized (this) {
+            long target = (now - startTime) / tickDuration;
+            if (pendingCount == 0 && tick <= target)
+                tick = target + 1; // nothing scheduled, skip the idle ticks
+            while (tick <= target) {
+                Timeout timeout = buckets[(int) (tick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.rounds <= 0) {
+                        unlink(timeout);
+                        expired.add(timeout);
+                    } else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+                tick++;
+            }
+        }
+        for (Timeout timeout : expired) {
+            try {
+                timeout.task.run();
+            } catch (Exception e) {
+                System.err.println(">>Timer wheel: error in timeout task " + e);
+            }
+        }
+    }
+
+    public synchronized boolean hasPending() {
+        return pendingCount > 0;
+    }
+
+    /*
+     * Milliseconds until the next tick is due, for event loops driving the wheel
+     */
+    public synchronized long timeToNextTick(long now) {
+        long next = startTime + tick * tickDuration;
+        return Math.max(0L, next - now);
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        workerThread = new Thread(this::run, "GUDP Timer Wheel");
+        workerThread.setDaemon(true);
+        workerThread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (workerThread != null)
+            workerThread.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            advance(now());
+            try {
+                Thread.sleep(Math.max(1L, timeToNextTick(now())));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.pending = false;
+        pendingCount--;
+    }
+}
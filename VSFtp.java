@@ -4,38 +4,86 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class VSFtp {
     public static final short MINLEN = 4;   
     public static final short MAX_FILENAME_LEN = 128;
     public static final Integer MAX_DATA_LEN = 128;
     public static final Integer MAX_LEN = MAX_DATA_LEN + MINLEN;
+    /* Largest chunk announced in BEGIN: a VS DATA message filling a GUDP packet */
+    public static final Integer MAX_CHUNK_LEN = GUDPPacket.MAX_DATA_LEN - MINLEN;
+    public static final Integer MAX_PACKET_LEN = GUDPPacket.MAX_DATA_LEN;
     public static final short TYPE_BEGIN = 1;
     public static final short TYPE_DATA = 2;
     public static final short TYPE_END = 3; 
+    /*
+     * The upper 16 bits of the type field carry a file id, for several
+     * files in flight between the same sender and receiver. File id 0 is a
+     * plain VSFtp message.
+     */
+    public static final int FILE_ID_SHIFT = 16;
+    public static final int TYPE_MASK = 0xffff;
+    public static final int MAX_FILE_ID = 0xffff;
 
     private ByteBuffer byteBuffer;
     private int vsType;
+    private int fileId = 0;
     private byte[] vsData;
     private int datalength;
+    private int chunkSize = MAX_DATA_LEN; // BEGIN: size of the DATA chunks to follow
+    private long fileSize = -1; // BEGIN: size of the file, -1 if not given
     
     public VSFtp(DatagramPacket packet) {
         byte[] packetData = packet.getData();
         byteBuffer = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
         byteBuffer.order(ByteOrder.BIG_ENDIAN);
-        vsType = byteBuffer.getInt();
+        int typeField = byteBuffer.getInt();
+        vsType = typeField & TYPE_MASK;
+        fileId = typeField >>> FILE_ID_SHIFT;
         if (vsType == TYPE_BEGIN || vsType == TYPE_DATA) {
             vsData = new byte[byteBuffer.remaining()];
             byteBuffer.get(vsData);
             datalength = vsData.length;
         }
+        if (vsType == TYPE_BEGIN)
+            parseBegin();
+    }
+
+    /*
+     * BEGIN: filename, optionally followed by a NUL byte, the chunk size
+     * (4 bytes) and the file size (8 bytes, optional too). Without a chunk
+     * size the chunks are MAX_DATA_LEN bytes.
+     */
+    private void parseBegin() {
+        for (int i = 0; i < vsData.length; i++) {
+            if (vsData[i] != 0)
+                continue;
+            ByteBuffer options = ByteBuffer.wrap(vsData, i + 1, vsData.length - (i + 1)).order(ByteOrder.BIG_ENDIAN);
+            if (options.remaining() >= 4)
+                chunkSize = options.getInt();
+            if (options.remaining() >= 8)
+                fileSize = options.getLong();
+            vsData = Arrays.copyOf(vsData, i);
+            datalength = i;
+            return;
+        }
     }
 
     private void alloc(int vstype, int vslen) {
         byteBuffer = ByteBuffer.allocate(vslen);
         byteBuffer.order(ByteOrder.BIG_ENDIAN);     
         byteBuffer.putInt(vstype);
-        vsType = vstype;
+        vsType = vstype & TYPE_MASK;
+        fileId = vstype >>> FILE_ID_SHIFT;
+    }
+
+    /*
+     * Type field of a message of type vstype for file fileId, to be given to
+     * the constructors and header()
+     */
+    public static int withFileId(int vstype, int fileId) {
+        return (fileId << FILE_ID_SHIFT) | (vstype & TYPE_MASK);
     }
 
     public VSFtp(int vstype) {
@@ -58,16 +106,72 @@ public class VSFtp {
         vsData = encodedName;
     }
 
+    /*
+     * BEGIN announcing the size of the DATA chunks that follow, up to
+     * MAX_CHUNK_LEN. VSFtp only goes from sender to receiver, so the sender
+     * picks the size and the receiver refuses a size it cannot take.
+     */
+    public VSFtp(int vstype, String filename, int chunksize) {
+        this(vstype, filename, chunksize, -1);
+    }
+
+    /*
+     * Same, also giving the file size (if not negative), so that the
+     * receiver can allocate the file up front
+     */
+    public VSFtp(int vstype, String filename, int chunksize, long filesize) {
+        byte[] encodedName = filename.getBytes(StandardCharsets.UTF_8);
+        int optionsLength = filesize < 0 ? 4 : 4 + 8;
+        alloc(vstype, MINLEN + encodedName.length + 1 + optionsLength);
+        byteBuffer.put(encodedName);
+        byteBuffer.put((byte) 0);
+        byteBuffer.putInt(chunksize);
+        if (filesize >= 0)
+            byteBuffer.putLong(filesize);
+        datalength = encodedName.length + 1 + optionsLength;
+        vsData = encodedName;
+        chunkSize = chunksize;
+        fileSize = filesize;
+    }
+
+    /*
+     * Header of a message of type vstype, to send a message in parts (this
+     * header, then the data) without building it in one buffer
+     */
+    public static ByteBuffer header(int vstype) {
+        ByteBuffer buffer = ByteBuffer.allocate(MINLEN);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(vstype);
+        buffer.flip();
+        return buffer;
+    }
+
     public int getType() {
         return vsType;
     }
 
+    public int getFileId() {
+        return fileId;
+    }
+
     public String getFilename() throws IOException {
         if (vsType != TYPE_BEGIN)
             throw new IOException("Not BEGIN message");
         return new String(vsData, StandardCharsets.UTF_8);
     }
 
+    public int getChunkSize() throws IOException {
+        if (vsType != TYPE_BEGIN)
+            throw new IOException("Not BEGIN message");
+        return chunkSize;
+    }
+
+    public long getFileSize() throws IOException {
+        if (vsType != TYPE_BEGIN)
+            throw new IOException("Not BEGIN message");
+        return fileSize;
+    }
+
     public byte[] getData() throws IOException {
         if (vsType != TYPE_DATA)
             throw new IOException("Not DATA message");
@@ -107,10 +211,12 @@ public class VSFtp {
 
         String data = "";
         if (vsType == TYPE_BEGIN)
-            data = " " + getFilename();
+            data = " " + getFilename() + " <" + String.valueOf(chunkSize) + " byte chunks>";
         else if (vsType == TYPE_DATA)
             data = " <" + String.valueOf(datalength) + " bytes>";
 
+        if (fileId != 0)
+            type = "[file " + String.valueOf(fileId) + "] " + type;
         return type + data;
     }
 }
@@ -1,27 +1,195 @@
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * Write-behind stage of the receiver: DATA is gathered in large buffers on
+ * the receiver thread and written to disk by a thread of its own, so that
+ * a slow disk never holds up receive() and the ACKs. Full buffers go
+ * through a bounded queue: if the disk cannot keep up, the receiver waits
+ * for room, and the GUDP receive window then slows the sender down. Each
+ * buffer is one positional write to the file's channel. The file is only
+ * forced to disk at END.
+ */
+class VSFtpWriter implements Runnable {
+    public static final int BUFFER_SIZE = 256 * 1024;
+    public static final int QUEUE_CAPACITY = 16; // buffers waiting to be written
+
+    /*
+     * A file being received. write() and close() are called from the
+     * receiver thread only.
+     */
+    class OutputFile {
+        private final String name;
+        private final FileChannel channel;
+        private final long allocated; // preallocated length, 0 if none
+        private ByteBuffer buffer;
+        private long position = 0; // file position of buffer
+        private volatile IOException error; // from the writer thread
+
+        private OutputFile(String name, FileChannel channel, long allocated) {
+            this.name = name;
+            this.channel = channel;
+            this.allocated = allocated;
+        }
+
+        public void write(byte[] data) throws IOException {
+            checkError();
+            int offset = 0;
+            while (offset < data.length) {
+                if (buffer == null)
+                    buffer = takeBuffer();
+                int n = Math.min(data.length - offset, buffer.remaining());
+                buffer.put(data, offset, n);
+                offset += n;
+                if (!buffer.hasRemaining())
+                    flush(false);
+            }
+        }
+
+        /*
+         * Queue the rest of the file and its closing: forced to disk and
+         * closed by the writer thread
+         */
+        public void close() throws IOException {
+            checkError();
+            flush(true);
+        }
+
+        private void flush(boolean last) throws IOException {
+            ByteBuffer full = buffer;
+            buffer = null;
+            if (full != null)
+                full.flip();
+            Task task = new Task(this, full, position, last);
+            if (full != null)
+                position += full.remaining();
+            try {
+                tasks.put(task);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while queueing write of " + name, e);
+            }
+        }
+
+        private void checkError() throws IOException {
+            if (error != null)
+                throw new IOException("Error writing " + name, error);
+        }
+    }
+
+    private static class Task {
+        final OutputFile file;
+        final ByteBuffer buffer; // null: nothing to write
+        final long position;
+        final boolean last; // force and close the file afterwards
+
+        Task(OutputFile file, ByteBuffer buffer, long position, boolean last) {
+            this.file = file;
+            this.buffer = buffer;
+            this.position = position;
+            this.last = last;
+        }
+    }
+
+    private final ArrayBlockingQueue<Task> tasks = new ArrayBlockingQueue<Task>(QUEUE_CAPACITY);
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<ByteBuffer>(QUEUE_CAPACITY + 1);
+
+    /*
+     * Create the file, allocated to size bytes if size is positive (the
+     * size from BEGIN)
+     */
+    public OutputFile open(String name, long size) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        long allocated = 0;
+        if (size > 0) {
+            try {
+                channel.write(ByteBuffer.wrap(new byte[1]), size - 1); // sets the length
+                allocated = size;
+            } catch (IOException e) {
+                System.err.println("VS receiver: cannot allocate " + name + ": " + e);
+            }
+        }
+        return new OutputFile(name, channel, allocated);
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.clear();
+        return buffer;
+    }
+
+    private void write(Task task) {
+        OutputFile file = task.file;
+        try {
+            if (task.buffer != null) {
+                long position = task.position;
+                while (task.buffer.hasRemaining())
+                    position += file.channel.write(task.buffer, position);
+            }
+            if (task.last) {
+                long length = task.position + (task.buffer != null ? task.buffer.limit() : 0);
+                if (file.allocated > length)
+                    file.channel.truncate(length); // the file was shorter than announced
+                file.channel.force(true);
+                file.channel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("VS receiver: error writing " + file.name + ": " + e);
+            file.error = e;
+            try {
+                file.channel.close();
+            } catch (IOException ce) {
+                // already reported
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            Task task;
+            try {
+                task = tasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            OutputFile file = task.file;
+            if (file.error == null) // else the file was given up on: drop the rest
+                write(task);
+            if (task.buffer != null)
+                freeBuffers.offer(task.buffer);
+        }
+    }
+}
 
 class ReceiveContext {
     private InetSocketAddress sockaddr;
     private enum State {NONE, OPEN, CLOSED};
     private State state;
-    private OutputStream outputStream;
+    private VSFtpWriter writer;
+    private VSFtpWriter.OutputFile outputFile;
+    private boolean failed = false; // writing the file failed: drop the rest of it
+    private int chunkSize = VSFtp.MAX_DATA_LEN; // announced in BEGIN
     private boolean overwrite = false;
     private boolean debug = false;
     
-    ReceiveContext(InetSocketAddress sa) {
+    ReceiveContext(InetSocketAddress sa, VSFtpWriter w) {
         sockaddr = sa;
         state = State.NONE;
+        writer = w;
     }
 
     public boolean hasSocketAddress(InetSocketAddress sa) {
@@ -57,8 +225,7 @@ class ReceiveContext {
         return localname;
     }
     
-    public void processPacket(DatagramPacket packet) throws IOException {
-        VSFtp vspacket = new VSFtp(packet);
+    public void processPacket(DatagramPacket packet, VSFtp vspacket) throws IOException {
 
         if (debug) {
             InetSocketAddress sockaddr = (InetSocketAddress) packet.getSocketAddress();
@@ -68,9 +235,14 @@ class ReceiveContext {
 
         if (vspacket.getType() == VSFtp.TYPE_BEGIN) {
             if ((state == State.NONE) || (state == State.CLOSED)) {
+                int size = vspacket.getChunkSize();
+                if (size < 1 || size > VSFtp.MAX_CHUNK_LEN)
+                    throw new IOException(String.format("Invalid VS chunk size %d", size));
+                chunkSize = size;
                 String filename = vspacket.getFilename();
                 String localname = getLocalFilename(filename);
-                outputStream = new FileOutputStream(localname);
+                outputFile = writer.open(localname, vspacket.getFileSize());
+                failed = false;
                 state = State.OPEN;
             }
             else
@@ -79,15 +251,28 @@ class ReceiveContext {
         else if (vspacket.getType() == VSFtp.TYPE_DATA) {
             if (state == State.OPEN) {
                 byte[] data = vspacket.getData();
-                outputStream.write(data);
+                if (data.length > chunkSize)
+                    throw new IOException(String.format("VS DATA of %d bytes, chunk size is %d", data.length, chunkSize));
+                if (failed)
+                    return; // already reported
+                try {
+                    outputFile.write(data);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
             }
             else
                 throw new IOException("VS receiver not active"); 
         }
         else if (vspacket.getType() == VSFtp.TYPE_END) {
             if (state == State.OPEN) {
-                outputStream.close();
+                // closed even if the file failed, so that the next BEGIN is accepted
+                VSFtpWriter.OutputFile file = outputFile;
+                outputFile = null;
                 state = State.CLOSED;
+                if (!failed)
+                    file.close(); // forced to disk by the writer
             }
             else
                 throw new IOException("VS receiver not active"); 
@@ -103,8 +288,11 @@ class ReceiveContext {
 }
 
 class VSFtpReceiver implements Runnable {
+    private static final int RECEIVE_BATCH = 64; // packets taken from the socket at once
     private GUDPSocket gUdpSocket;
-    private ArrayList<ReceiveContext> receiveContexts = new ArrayList<ReceiveContext>();
+    private HashMap<InetSocketAddress, HashMap<Integer, ReceiveContext>> receiveContexts =
+        new HashMap<InetSocketAddress, HashMap<Integer, ReceiveContext>>();
+    private VSFtpWriter writer = new VSFtpWriter();
     private String[] fileNames;
     private boolean debug = false;
     private boolean overwrite = false;
@@ -113,17 +301,26 @@ class VSFtpReceiver implements Runnable {
         gUdpSocket = socket;
     }
 
-    public ReceiveContext getContext(DatagramPacket packet) {
+    /*
+     * Context of a file from a sender: one per sender address and file id
+     * (see VSFtp.FILE_ID_SHIFT), so that files sent in parallel are written
+     * to separate outputs
+     */
+    public ReceiveContext getContext(DatagramPacket packet, int fileId) {
         InetSocketAddress sockaddr = (InetSocketAddress) packet.getSocketAddress();
-        for (ReceiveContext context: receiveContexts) {
-            if (context.hasSocketAddress(sockaddr))
-                return context;
+        HashMap<Integer, ReceiveContext> senderContexts = receiveContexts.get(sockaddr);
+        if (senderContexts == null) {
+            senderContexts = new HashMap<Integer, ReceiveContext>();
+            receiveContexts.put(sockaddr, senderContexts);
         }
+        ReceiveContext context = senderContexts.get(fileId);
+        if (context != null)
+            return context;
         /* Not found */
-        ReceiveContext context = new ReceiveContext(sockaddr);
+        context = new ReceiveContext(sockaddr, writer);
         context.setDebug(debug);
         context.setOverwrite(overwrite);
-        receiveContexts.add(context);
+        senderContexts.put(fileId, context);
         return context;
     }
 
@@ -140,17 +337,30 @@ class VSFtpReceiver implements Runnable {
     }
 
     public void run() {
+        Thread writerThread = new Thread(writer, "VSFTP Writer");
+        writerThread.start();
+        // the packets are reused: processPacket() copies what it keeps
+        DatagramPacket[] packets = new DatagramPacket[RECEIVE_BATCH];
+        for (int i = 0; i < packets.length; i++)
+            packets[i] = new DatagramPacket(new byte[VSFtp.MAX_PACKET_LEN], VSFtp.MAX_PACKET_LEN);
         while (true) {
+            int count = 0;
             try {
-                byte[] buf = new byte[VSFtp.MAX_LEN];
-                DatagramPacket packet = new DatagramPacket(buf, VSFtp.MAX_LEN);
-                gUdpSocket.receive(packet);
-                ReceiveContext context = getContext(packet);
-                context.processPacket(packet);
+                count = gUdpSocket.receive(packets);
             } catch (Exception e) {
                 System.err.println("Exception in VS receiver");
                 e.printStackTrace();
             }
+            for (int i = 0; i < count; i++) {
+                try {
+                    VSFtp vspacket = new VSFtp(packets[i]);
+                    ReceiveContext context = getContext(packets[i], vspacket.getFileId());
+                    context.processPacket(packets[i], vspacket);
+                } catch (Exception e) {
+                    System.err.println("Exception in VS receiver");
+                    e.printStackTrace();
+                }
+            }
         }
     }
 }
@@ -1,22 +1,154 @@
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Read-ahead stage of the sender: a thread of its own reads the file into
+ * pooled buffers, while the sender hands the previous ones to the socket,
+ * so that a slow read does not leave a gap on the wire. The reader runs
+ * ahead by as many buffers as the pool holds, and waits for the sender to
+ * give one back after that. Buffers hold whole chunks, except the last one.
+ *
+ * A buffer is given back once send() has returned for all its chunks, and
+ * the sender keeps the socket's send buffer down to twice the window (see
+ * VSFtpSender), so send() only returns for chunks close to the window. The
+ * read-ahead is then the distance between the disk and the network, not a
+ * stage in front of another, unbounded, one.
+ *
+ * One reader is used for all the files a sender thread sends, one after the
+ * other, so the pool is reused across files. Buffers are allocated as they
+ * are needed, and never more than the file being read fills: a small file
+ * costs one buffer, not the whole read-ahead.
+ */
+class VSFtpReader implements Runnable {
+    public static final int BUFFER_SIZE = 256 * 1024;
+    public static final long DEFAULT_READ_AHEAD = 4L * 1024 * 1024;
+
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final int bufferSize;
+    private final int maxBuffers; // read-ahead, in buffers
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private final ArrayBlockingQueue<ByteBuffer> filledBuffers;
+    private int allocated = 0; // buffers of the pool, free or in use
+    private int fileBuffers; // buffers the current file may use
+    private FileChannel channel;
+    private volatile IOException error;
+
+    VSFtpReader(int chunkSize, long readAhead) {
+        this.bufferSize = Math.max(chunkSize, BUFFER_SIZE - BUFFER_SIZE % chunkSize);
+        this.maxBuffers = (int) Math.max(2, readAhead / bufferSize);
+        this.freeBuffers = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
+        this.filledBuffers = new ArrayBlockingQueue<ByteBuffer>(maxBuffers + 1);
+    }
+
+    /*
+     * Start reading channel from its current position, on a thread of its
+     * own. The thread of the previous file must be done.
+     */
+    public Thread start(FileChannel channel) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = filledBuffers.poll()) != null) {
+            if (buffer != EOF)
+                freeBuffers.add(buffer);
+        }
+        allocated = freeBuffers.size(); // buffers not given back after an error are dropped
+        long blocks = (channel.size() - channel.position() + bufferSize - 1) / bufferSize;
+        this.fileBuffers = (int) Math.max(1, Math.min(maxBuffers, blocks));
+        this.channel = channel;
+        this.error = null;
+        Thread readerThread = new Thread(this, "VSFTP Reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+        return readerThread;
+    }
+
+    /*
+     * Next buffer of the file, ready to be read, or null at the end of the
+     * file. Give it back with release() when done.
+     */
+    public ByteBuffer next() throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = filledBuffers.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for file data", e);
+        }
+        if (buffer == EOF) {
+            filledBuffers.add(EOF); // for any later call
+            if (error != null)
+                throw error;
+            return null;
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        freeBuffers.add(buffer);
+    }
+
+    private ByteBuffer takeBuffer() throws InterruptedException {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null)
+            return buffer;
+        if (allocated < fileBuffers) {
+            allocated++;
+            return ByteBuffer.allocate(bufferSize);
+        }
+        return freeBuffers.take();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                ByteBuffer buffer = takeBuffer();
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) != -1)
+                    ;
+                buffer.flip();
+                if (buffer.hasRemaining())
+                    filledBuffers.add(buffer);
+                else
+                    freeBuffers.add(buffer);
+                if (buffer.limit() < buffer.capacity())
+                    break; // end of file
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            error = new IOException("File reader interrupted", e);
+        }
+        filledBuffers.add(EOF);
+    }
+}
 
 class VSFtpSender implements Runnable {
+    private static final long MAP_REGION = 64L * 1024 * 1024; // bytes of file mapped at a time
+    private static final int SEND_BUFFER = 1; // packets: the send buffer is twice the window, no more
     private GUDPSocket gUdpSocket;
     private ArrayList<InetSocketAddress> destSocketAddresses;
     private String[] fileNames;
     private boolean debug = false;
+    private int chunkSize = VSFtp.MAX_CHUNK_LEN; // bytes of file per DATA message
+    private boolean mapped = false; // read files through a memory mapping
+    private long readAhead = VSFtpReader.DEFAULT_READ_AHEAD; // bytes read ahead of the socket
+    private int parallel = 1; // files sent at the same time
     
     VSFtpSender(GUDPSocket socket, ArrayList<InetSocketAddress> destinations, String[] files) {
         gUdpSocket = socket;
+        gUdpSocket.setSendBufferSize(SEND_BUFFER); // the read-ahead buffers the file instead
         destSocketAddresses = destinations;
         fileNames = files;
     }
@@ -28,31 +160,157 @@ class VSFtpSender implements Runnable {
         }
     }
 
-    private void sendFile(String fileName) throws IOException {
-        FileInputStream inputStream = new FileInputStream(fileName);
-        VSFtp vsBegin = new VSFtp(VSFtp.TYPE_BEGIN, fileName);
-        sendAll(vsBegin);
-        byte[] fileBuffer = new byte[VSFtp.MAX_DATA_LEN];
-        int byteRead;
-        while ((byteRead = inputStream.read(fileBuffer, 0, VSFtp.MAX_DATA_LEN)) != -1) {
-            VSFtp vsData = new VSFtp(VSFtp.TYPE_DATA, fileBuffer, byteRead);
-            sendAll(vsData);
+    /*
+     * The file is read ahead by the sender thread's VSFtpReader, and each
+     * DATA message is sent as the VSFtp header and a slice of the reader's
+     * buffer
+     */
+    private void sendFile(String fileName, int fileId, VSFtpReader reader) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            VSFtp vsBegin = new VSFtp(VSFtp.withFileId(VSFtp.TYPE_BEGIN, fileId), fileName, chunkSize, channel.size());
+            sendAll(vsBegin);
+            Thread readerThread = reader.start(channel);
+            try {
+                ByteBuffer header = VSFtp.header(VSFtp.withFileId(VSFtp.TYPE_DATA, fileId));
+                ByteBuffer buffer;
+                while ((buffer = reader.next()) != null) {
+                    for (int offset = 0; offset < buffer.limit(); offset += chunkSize) {
+                        ByteBuffer chunk = buffer.slice(offset, Math.min(chunkSize, buffer.limit() - offset));
+                        for (InetSocketAddress sockaddr: destSocketAddresses)
+                            gUdpSocket.send(sockaddr, header, chunk);
+                    }
+                    reader.release(buffer);
+                }
+            } finally {
+                readerThread.interrupt(); // if still waiting for a buffer after an error
+                try {
+                    readerThread.join(); // done with the pool before the next file
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
-        VSFtp vsEnd = new VSFtp(VSFtp.TYPE_END);
+        VSFtp vsEnd = new VSFtp(VSFtp.withFileId(VSFtp.TYPE_END, fileId));
         sendAll(vsEnd);
-        gUdpSocket.finish();
     }
     
+    /*
+     * Same as sendFile(), with the file mapped in regions of MAP_REGION
+     * bytes. DATA messages are sent as the VSFtp header and a slice of the
+     * mapping, copied once, into the GUDP packet: no read buffer, VSFtp
+     * message or datagram array per chunk. The copies stay on the heap until
+     * they are ACKed, but send() waits once the socket's send buffer is full
+     * (see GUDPSocket.setSendBufferSize), so the heap holds a send buffer
+     * per destination and the mapping one region, whatever the file size.
+     */
+    private void sendFileMapped(String fileName, int fileId) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            VSFtp vsBegin = new VSFtp(VSFtp.withFileId(VSFtp.TYPE_BEGIN, fileId), fileName, chunkSize, size);
+            sendAll(vsBegin);
+            ByteBuffer header = VSFtp.header(VSFtp.withFileId(VSFtp.TYPE_DATA, fileId));
+            long regionSize = MAP_REGION - MAP_REGION % chunkSize; // whole chunks per region
+            for (long start = 0; start < size; start += regionSize) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                                      Math.min(regionSize, size - start));
+                for (int offset = 0; offset < region.limit(); offset += chunkSize) {
+                    ByteBuffer chunk = region.slice(offset, Math.min(chunkSize, region.limit() - offset));
+                    for (InetSocketAddress sockaddr: destSocketAddresses)
+                        gUdpSocket.send(sockaddr, header, chunk);
+                }
+            }
+        }
+        VSFtp vsEnd = new VSFtp(VSFtp.withFileId(VSFtp.TYPE_END, fileId));
+        sendAll(vsEnd);
+    }
+
+    /*
+     * Chunk size announced in BEGIN, between 1 and VSFtp.MAX_CHUNK_LEN
+     */
+    public void setChunkSize(int size) {
+        if (size < 1 || size > VSFtp.MAX_CHUNK_LEN)
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + VSFtp.MAX_CHUNK_LEN);
+        this.chunkSize = size;
+    }
+
+    public void setMapped(boolean value) {
+        this.mapped = value;
+    }
+
+    /*
+     * How far the file is read ahead of the socket, in bytes (at least two
+     * buffers of VSFtpReader.BUFFER_SIZE)
+     */
+    public void setReadAhead(long bytes) {
+        this.readAhead = bytes;
+    }
+
     private boolean setDebug(boolean dbg) {
         boolean old = this.debug;
         this.debug = dbg;
         return old;
     }
 
+    /*
+     * Files sent at the same time, each with a file id of its own (see
+     * VSFtp.FILE_ID_SHIFT), over the same socket. 1 sends the files one
+     * after the other, as plain VSFtp.
+     */
+    public void setParallel(int files) {
+        if (files < 1 || files > VSFtp.MAX_FILE_ID)
+            throw new IllegalArgumentException("Parallel files must be between 1 and " + VSFtp.MAX_FILE_ID);
+        this.parallel = files;
+    }
+
+    private void sendOne(String fileName, int fileId, VSFtpReader reader) throws IOException {
+        if (mapped)
+            sendFileMapped(fileName, fileId);
+        else
+            sendFile(fileName, fileId, reader);
+    }
+
+    /*
+     * Parallel mode: each thread takes the next file to send, until there are
+     * none left. Each thread sends its files under its own file id, its index
+     * + 1, so files in flight at the same time have different ids (an id
+     * taken from the file index could come round again while the file that
+     * had it is still being sent). The socket is finished once, after the
+     * last file, instead of after each file.
+     */
+    private void sendParallel() throws InterruptedException, IOException {
+        AtomicInteger nextFile = new AtomicInteger(0);
+        Thread[] workers = new Thread[Math.min(parallel, fileNames.length)];
+        for (int i = 0; i < workers.length; i++) {
+            int fileId = i + 1;
+            workers[i] = new Thread(() -> {
+                VSFtpReader reader = new VSFtpReader(chunkSize, readAhead); // buffers for this thread's files
+                int index;
+                while ((index = nextFile.getAndIncrement()) < fileNames.length) {
+                    try {
+                        sendOne(fileNames[index], fileId, reader);
+                    } catch (Exception e) {
+                        System.err.println("Exception in VS sender, file " + fileNames[index]);
+                        e.printStackTrace();
+                    }
+                }
+            }, "VSFTP Sender " + i);
+            workers[i].start();
+        }
+        for (Thread worker: workers)
+            worker.join();
+        gUdpSocket.finish();
+    }
+
     public void run() {
         try {
-            for (String fileName: this.fileNames) {
-                sendFile(fileName);
+            if (parallel > 1) {
+                sendParallel();
+            } else {
+                VSFtpReader reader = new VSFtpReader(chunkSize, readAhead);
+                for (String fileName: this.fileNames) {
+                    sendOne(fileName, 0, reader);
+                    gUdpSocket.finish();
+                }
             }
 	    gUdpSocket.close();
         } catch (Exception e) {
@@ -66,10 +324,14 @@ public class VSSend {
     static boolean debug = false;
     static ArrayList<InetSocketAddress> destSocketAddresses;
     static String[] fileNames;
+    static int chunkSize = VSFtp.MAX_CHUNK_LEN;
+    static boolean mapped = false;
+    static long readAhead = VSFtpReader.DEFAULT_READ_AHEAD;
+    static int parallel = 1;
     static GUDPSocket gUdpSocket;
     
     private static void usage() {
-        System.err.print( "Usage: VSSend [-d] host1:port1 [host2:port2] ... file1 [file2]...\n");
+        System.err.print( "Usage: VSSend [-d] [-m] [-r readahead_mb] [-p parallel_files] [-c chunksize] host1:port1 [host2:port2] ... file1 [file2]...\n");
         System.exit(1);
 
     }
@@ -77,8 +339,28 @@ public class VSSend {
     private static void getargs(String[] args) {
         int index = 0;
 
-        if (args.length > 0 && args[index].equals("-d")) {
-            debug = true;
+        while (index < args.length && args[index].startsWith("-")) {
+            if (args[index].equals("-d")) {
+                debug = true;
+            }
+            else if (args[index].equals("-m")) {
+                mapped = true;
+            }
+            else if (args[index].equals("-r") && index + 1 < args.length) {
+                readAhead = Long.parseLong(args[++index]) * 1024 * 1024;
+            }
+            else if (args[index].equals("-p") && index + 1 < args.length) {
+                parallel = Integer.parseInt(args[++index]);
+                if (parallel < 1 || parallel > VSFtp.MAX_FILE_ID)
+                    usage();
+            }
+            else if (args[index].equals("-c") && index + 1 < args.length) {
+                chunkSize = Integer.parseInt(args[++index]);
+                if (chunkSize < 1 || chunkSize > VSFtp.MAX_CHUNK_LEN)
+                    usage();
+            }
+            else
+                usage();
             index++;
         }
         destSocketAddresses = new ArrayList<InetSocketAddress>();
@@ -104,6 +386,10 @@ public class VSSend {
         gUdpSocket = new GUDPSocket(dsock);
 
         VSFtpSender vsSender = new VSFtpSender(gUdpSocket, destSocketAddresses, fileNames);
+        vsSender.setChunkSize(chunkSize);
+        vsSender.setMapped(mapped);
+        vsSender.setReadAhead(readAhead);
+        vsSender.setParallel(parallel);
         Thread sender = new Thread(vsSender, "VSFTP Sender");
         sender.start();
     }